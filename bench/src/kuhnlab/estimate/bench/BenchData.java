@@ -0,0 +1,131 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import java.util.Random;
+import kuhnlab.estimate.BlockEstimateFunction;
+import kuhnlab.estimate.EstimateFunction;
+import kuhnlab.estimate.ExponentialDecay;
+import kuhnlab.estimate.FiniteDifferenceFunction;
+import kuhnlab.estimate.GaussianSum;
+import kuhnlab.estimate.LorentzianSum;
+import kuhnlab.estimate.ValueFunction;
+
+/**
+ * Synthetic fitting problems shared by the benchmarks. Every problem is
+ * generated from a fixed seed, so each run fits exactly the same data.
+ *
+ * @author jrkuhn
+ */
+public class BenchData {
+    /** Standard deviation of the noise added to each value. */
+    public static final double NOISE = 0.005;
+    /**
+     * Relative error of the starting guess. Peak centers are instead moved by
+     * this fraction of their width.
+     */
+    public static final double GUESS_ERROR = 0.05;
+
+    /** Largest number of exponential components generated. */
+    public static final int MAX_EXPONENTIALS = 4;
+
+    public final EstimateFunction function;
+    public final double[] xs, ys, sigmas;
+    public final double[] truth, guess;
+
+    /**
+     * Generate a problem.
+     * @param model "gaussian", "exponential", "lorentzian", or
+     *          "finiteDifference" (a Gaussian sum without analytic derivatives)
+     * @param numPoints number of data points
+     * @param numCoef approximate number of coefficients; rounded down to a
+     *          whole number of components, at least one. Exponential
+     *          decays have at most {@link #MAX_EXPONENTIALS} components.
+     */
+    public BenchData(String model, int numPoints, int numCoef) {
+        Random random = new Random(911);
+        double xMax = 10.0;
+        if (model.equals("exponential")) {
+            // more than a few exponentials cannot be resolved from each other
+            int n = Math.min(MAX_EXPONENTIALS, Math.max(1, numCoef / 2));
+            function = new ExponentialDecay(n);
+            truth = new double[2 * n];
+            for (int k = 0; k < n; k++) {
+                truth[2 * k] = 5.0 / (k + 1);
+                // well separated lifetimes
+                truth[2 * k + 1] = 0.2 * Math.pow(2.5, k);
+            }
+            xMax = 5 * truth[truth.length - 1];
+        } else {
+            int n = Math.max(1, numCoef / 3);
+            if (model.equals("gaussian")) {
+                function = new GaussianSum(n);
+            } else if (model.equals("lorentzian")) {
+                function = new LorentzianSum(n);
+            } else if (model.equals("finiteDifference")) {
+                function = new FiniteDifferenceFunction(valueOnly(new GaussianSum(n)));
+            } else {
+                throw new RuntimeException("Unknown model " + model);
+            }
+            truth = new double[3 * n];
+            double spacing = xMax / n;
+            for (int k = 0; k < n; k++) {
+                truth[3 * k] = 5.0 - 2.0 * (k % 2);
+                truth[3 * k + 1] = spacing * (k + 0.5);
+                truth[3 * k + 2] = 0.5 * spacing;
+            }
+        }
+        guess = new double[truth.length];
+        boolean peaks = !model.equals("exponential");
+        for (int i = 0; i < truth.length; i++) {
+            double error = GUESS_ERROR * (2 * random.nextDouble() - 1);
+            if (peaks && i % 3 == 1) {
+                guess[i] = truth[i] + error * truth[i + 1];
+            } else {
+                guess[i] = truth[i] * (1 + error);
+            }
+        }
+        xs = new double[numPoints];
+        ys = new double[numPoints];
+        sigmas = new double[numPoints];
+        double[] point = new double[1];
+        for (int i = 0; i < numPoints; i++) {
+            xs[i] = xMax * (i + 1) / numPoints;
+            point[0] = xs[i];
+            double y = function.getValue(point, truth);
+            ys[i] = y + NOISE * random.nextGaussian();
+            sigmas[i] = NOISE;
+        }
+    }
+
+    /**
+     * Hide the analytic derivatives of a model.
+     */
+    static ValueFunction valueOnly(final BlockEstimateFunction model) {
+        return new ValueFunction() {
+            public int getPointDimension() {
+                return model.getPointDimension();
+            }
+
+            public int getNumCoef() {
+                return model.getNumCoef();
+            }
+
+            public String getCoefName(int index) {
+                return model.getCoefName(index);
+            }
+
+            public double getValue(double[] point, double[] coef) {
+                return model.getValue(point, coef);
+            }
+
+            @Override
+            public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+                model.getValues(points, numPoints, coef, values);
+            }
+        };
+    }
+}
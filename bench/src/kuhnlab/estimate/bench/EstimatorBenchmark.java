@@ -0,0 +1,85 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import kuhnlab.estimate.LevenbergMarquardtEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times a complete {@link LevenbergMarquardtEstimator#estimate} from a
+ * perturbed guess, across problem sizes, models and thread counts.
+ * <p>
+ * Run with {@code ant bench}; see {@code build.xml}. Sample-time mode reports
+ * latency percentiles, and the GC profiler (enabled by the ant target)
+ * reports the allocation rate. The full parameter space is large, so
+ * restrict it with JMH's {@code -p} option, for example
+ * {@code ant bench -Dbench.args="-p numPoints=100,10000 -p threads=1"}.
+ *
+ * @author jrkuhn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class EstimatorBenchmark {
+    @Param({"100", "10000", "1000000", "10000000"})
+    public int numPoints;
+
+    @Param({"3", "6", "30", "60"})
+    public int numCoef;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"gaussian", "exponential", "lorentzian", "finiteDifference"})
+    public String model;
+
+    BenchData problem;
+    LevenbergMarquardtEstimator estimator;
+    ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        problem = new BenchData(model, numPoints, numCoef);
+        estimator = new LevenbergMarquardtEstimator(problem.function);
+        estimator.addDataPoints(problem.xs, problem.ys, problem.sigmas);
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+            estimator.setParallelPool(pool);
+            // small enough chunks to keep every thread busy
+            int chunk = Math.max(1024, numPoints / (4 * threads));
+            estimator.setupParallel(chunk, chunk);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public double[] estimate() {
+        return estimator.estimate(problem.guess);
+    }
+}
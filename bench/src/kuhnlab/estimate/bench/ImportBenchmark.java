@@ -0,0 +1,126 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import kuhnlab.estimate.BinaryDataImporter;
+import kuhnlab.estimate.LevenbergMarquardtEstimator;
+import kuhnlab.estimate.MappedDataSource;
+import kuhnlab.estimate.MappedDataWriter;
+import kuhnlab.estimate.TextDataImporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares loading a CSV file line by line through
+ * {@link LevenbergMarquardtEstimator#addDataPoint} with the bulk importers,
+ * for the same points as text and as a binary dump. Divide the file sizes
+ * printed at setup by the reported times for MB/s.
+ *
+ * @author jrkuhn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ImportBenchmark {
+    @Param({"1000000", "10000000"})
+    public int numPoints;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    BenchData problem;
+    File csvFile, binaryFile;
+    LevenbergMarquardtEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        problem = new BenchData("gaussian", numPoints, 3);
+        csvFile = File.createTempFile("import", ".csv");
+        binaryFile = File.createTempFile("import", ".bin");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(csvFile), 1 << 20))) {
+            out.println("x,value,sigma");
+            for (int i = 0; i < numPoints; i++) {
+                out.print(problem.xs[i]);
+                out.print(',');
+                out.print(problem.ys[i]);
+                out.print(',');
+                out.println(problem.sigmas[i]);
+            }
+        }
+        MappedDataWriter writer = new MappedDataWriter(binaryFile, 1);
+        writer.addAll(problem.xs, problem.ys, problem.sigmas);
+        writer.close();
+        System.out.println("CSV " + csvFile.length() / 1000000 + " MB, binary " +
+                binaryFile.length() / 1000000 + " MB");
+        estimator = new LevenbergMarquardtEstimator(problem.function);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        csvFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public long lineByLine() throws IOException {
+        estimator.clearData();
+        double[] point = new double[1];
+        try (BufferedReader in = new BufferedReader(new FileReader(csvFile))) {
+            in.readLine();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",");
+                point[0] = Double.parseDouble(fields[0]);
+                estimator.addDataPoint(point, Double.parseDouble(fields[1]), Double.parseDouble(fields[2]));
+            }
+        }
+        return estimator.getNumDataPoints();
+    }
+
+    @Benchmark
+    public long importText() throws IOException {
+        estimator.clearData();
+        TextDataImporter importer = TextDataImporter.csv(1);
+        importer.setColumns(new int[] {0}, 1, 2);
+        importer.setSkipLines(1);
+        importer.setStreaming(streaming);
+        importer.readInto(csvFile, estimator);
+        return estimator.getNumDataPoints();
+    }
+
+    @Benchmark
+    public long importBinary() throws IOException {
+        estimator.clearData();
+        // a MappedDataSource file is a raw dump of double records after its header
+        BinaryDataImporter importer = new BinaryDataImporter(1, 3, BinaryDataImporter.Type.FLOAT64);
+        importer.setHeaderBytes(MappedDataSource.HEADER_BYTES);
+        importer.setStreaming(streaming);
+        importer.readInto(binaryFile, estimator);
+        return estimator.getNumDataPoints();
+    }
+}
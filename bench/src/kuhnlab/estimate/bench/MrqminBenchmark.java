@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import com.nr.ch15.FGAUSS;
+import com.nr.ch15.MRQMIN;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Baseline: the same Gaussian sum problems as {@link EstimatorBenchmark},
+ * fitted with Numerical Recipes' {@code mrqmin} and the stopping rule of
+ * {@code TestLM.testMRQMin}. {@code mrqmin} only supports {@code fgauss} and
+ * runs on one thread, so only the point and coefficient counts vary.
+ *
+ * @author jrkuhn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MrqminBenchmark {
+    @Param({"100", "10000", "1000000", "10000000"})
+    public int numPoints;
+
+    @Param({"3", "6", "30", "60"})
+    public int numCoef;
+
+    BenchData problem;
+    MRQMIN mrqmin;
+    FGAUSS fgauss;
+    boolean[] ia;
+    double[][] covar, alpha;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        problem = new BenchData("gaussian", numPoints, numCoef);
+        int ma = problem.truth.length;
+        mrqmin = new MRQMIN();
+        fgauss = new FGAUSS();
+        ia = new boolean[ma];
+        java.util.Arrays.fill(ia, true);
+        covar = new double[ma][ma];
+        alpha = new double[ma][ma];
+    }
+
+    @Benchmark
+    public double[] estimate() {
+        double[] a = problem.guess.clone();
+        double[] alamda = {-1}, chisq = {0};
+        mrqmin.mrqmin(problem.xs, problem.ys, problem.sigmas, a, ia, covar, alpha, chisq, fgauss, alamda);
+        int itst = 0;
+        // stop after four iterations that change Chi-Squared by less than 0.1
+        for (int k = 0; k < 1000 && itst < 4; k++) {
+            double ochisq = chisq[0];
+            mrqmin.mrqmin(problem.xs, problem.ys, problem.sigmas, a, ia, covar, alpha, chisq, fgauss, alamda);
+            itst = (Math.abs(ochisq - chisq[0]) < 0.1) ? itst + 1 : 0;
+        }
+        // final call computes the covariance, like estimatedCovariance()
+        alamda[0] = 0.0;
+        mrqmin.mrqmin(problem.xs, problem.ys, problem.sigmas, a, ia, covar, alpha, chisq, fgauss, alamda);
+        return a;
+    }
+}
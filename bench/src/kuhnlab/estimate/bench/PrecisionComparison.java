@@ -0,0 +1,68 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import kuhnlab.estimate.DataSource;
+import kuhnlab.estimate.FloatData;
+import kuhnlab.estimate.LevenbergMarquardtEstimator;
+import kuhnlab.estimate.PackedData;
+
+/**
+ * Prints how far the fitted coefficients and Chi-Squared move when data is
+ * stored in single precision and when the sums are not compensated. The
+ * reference is a fit of double-precision data with compensated summation.
+ * Coefficient differences are given in units of the coefficient's standard
+ * error, so anything well below 1 is lost in the noise of the fit itself.
+ * <p>
+ * Run with {@code ant bench-accuracy}, optionally with
+ * {@code -Dbench.args="numPoints numCoef"}.
+ *
+ * @author jrkuhn
+ */
+public class PrecisionComparison {
+    public static void main(String[] args) {
+        int numPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+        int numCoef = (args.length > 1) ? Integer.parseInt(args[1]) : 6;
+        BenchData problem = new BenchData("gaussian", numPoints, numCoef);
+        PackedData doubles = new PackedData(1, numPoints);
+        doubles.addAll(problem.xs, problem.ys, problem.sigmas, 0, numPoints);
+        FloatData floats = new FloatData(1, numPoints);
+        floats.addAll(problem.xs, problem.ys, problem.sigmas, 0, numPoints);
+
+        LevenbergMarquardtEstimator reference = fit(problem, doubles, true);
+        double[] refCoef = reference.estimate(problem.guess);
+        double refChiSq = reference.estimatedChiSquared();
+        double[][] covariance = reference.estimatedCovariance();
+
+        System.out.println(numPoints + " points, " + refCoef.length + " coefficients");
+        System.out.printf("%-8s %-12s %14s %14s %12s%n",
+                "storage", "summation", "max |dcoef|/sd", "rel dchi2", "millis");
+        for (String storage : new String[] {"double", "float"}) {
+            for (boolean compensated : new boolean[] {false, true}) {
+                DataSource data = storage.equals("float") ? floats : doubles;
+                LevenbergMarquardtEstimator estimator = fit(problem, data, compensated);
+                long start = System.nanoTime();
+                double[] coef = estimator.estimate(problem.guess);
+                long millis = (System.nanoTime() - start) / 1000000;
+                double maxError = 0;
+                for (int i = 0; i < coef.length; i++) {
+                    double sd = Math.sqrt(covariance[i][i]);
+                    maxError = Math.max(maxError, Math.abs(coef[i] - refCoef[i]) / sd);
+                }
+                double chiError = Math.abs(estimator.estimatedChiSquared() - refChiSq) / refChiSq;
+                System.out.printf("%-8s %-12s %14.3e %14.3e %12d%n", storage,
+                        compensated ? "compensated" : "plain", maxError, chiError, millis);
+            }
+        }
+    }
+
+    static LevenbergMarquardtEstimator fit(BenchData problem, DataSource data, boolean compensated) {
+        LevenbergMarquardtEstimator estimator = new LevenbergMarquardtEstimator(problem.function);
+        estimator.setDataSource(data);
+        estimator.setupCompensatedSummation(compensated);
+        return estimator;
+    }
+}
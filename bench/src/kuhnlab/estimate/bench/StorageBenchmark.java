@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate.bench;
+
+import java.util.concurrent.TimeUnit;
+import kuhnlab.estimate.FloatData;
+import kuhnlab.estimate.LevenbergMarquardtEstimator;
+import kuhnlab.estimate.PackedData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares double and single-precision data storage, with plain and
+ * compensated summation, on datasets large enough that each pass over the
+ * data is limited by memory bandwidth. See {@link PrecisionComparison} for
+ * the effect of the same choices on the fitted coefficients.
+ *
+ * @author jrkuhn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StorageBenchmark {
+    @Param({"1000000", "10000000"})
+    public int numPoints;
+
+    @Param({"3", "6"})
+    public int numCoef;
+
+    @Param({"double", "float"})
+    public String storage;
+
+    @Param({"false", "true"})
+    public boolean compensated;
+
+    BenchData problem;
+    LevenbergMarquardtEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        problem = new BenchData("gaussian", numPoints, numCoef);
+        estimator = new LevenbergMarquardtEstimator(problem.function);
+        if (storage.equals("float")) {
+            FloatData data = new FloatData(1, numPoints);
+            data.addAll(problem.xs, problem.ys, problem.sigmas, 0, numPoints);
+            estimator.setDataSource(data);
+        } else {
+            PackedData data = new PackedData(1, numPoints);
+            data.addAll(problem.xs, problem.ys, problem.sigmas, 0, numPoints);
+            estimator.setDataSource(data);
+        }
+        estimator.setupCompensatedSummation(compensated);
+    }
+
+    @Benchmark
+    public double[] estimate() {
+        return estimator.estimate(problem.guess);
+    }
+}
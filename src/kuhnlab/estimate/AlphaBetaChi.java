@@ -0,0 +1,446 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+
+/**
+ * Running sums of alpha (the approximate Hessian), beta (the gradient) and
+ * Chi-Squared over a range of data points. Each instance carries its own
+ * evaluation buffers, so separate instances can accumulate separate ranges
+ * of the same data concurrently.
+ * <p>
+ * Data is read from the {@link DataSource} a block of points at a time into
+ * small buffers that stay in cache, so the source never has to be copied
+ * onto the heap as a whole.
+ * <p>
+ * When some coefficients are held fixed, alpha and beta only cover the
+ * active (free) coefficients, so the cost of each point grows with the
+ * square of the number of free coefficients rather than of all of them.
+ * <p>
+ * With compensated summation, each block of points is summed on its own and
+ * the block sums are added to the running totals with Kahan compensation,
+ * so the rounding error of the totals does not grow with the number of
+ * points.
+ *
+ * @author jrkuhn
+ */
+class AlphaBetaChi {
+    /** Number of points read from the data source at a time. */
+    static final int BLOCK_SIZE = 256;
+
+    /** Number of active coefficients; the dimension of alpha and beta. */
+    final int numCoef;
+    /** Number of coefficients of the function. */
+    final int numFunctionCoef;
+    /**
+     * Function coefficient index of each active coefficient, or {@code null}
+     * if every coefficient is active.
+     */
+    final int[] active;
+    /**
+     * Which derivatives the function must compute, or {@code null} if it must
+     * compute all of them.
+     */
+    final boolean[] needed;
+    /**
+     * Alpha matrix stored row-major, {@code numCoef * numCoef} long. Alpha is
+     * symmetric, so only the upper triangle is accumulated.
+     */
+    final double[] alpha;
+    final double[] beta;
+    double chiSq;
+
+    /** Sum each block separately and add it to the totals with compensation? */
+    boolean compensated;
+    /** Sums of the current block, and the running Kahan compensation terms. */
+    double[] partialAlpha, partialBeta, alphaCompensation, betaCompensation;
+    double chiCompensation;
+
+    final EstimateFunction.Estimate evaluation;
+    /** Derivatives of the active coefficients at one point. */
+    final double[] derivatives;
+    final double[] point;
+    final double[] blockPoints;
+    final double[] blockValues;
+    final double[] blockWeights;
+    /** Block evaluation buffers, allocated the first time they are needed. */
+    double[] blockEstimates;
+    double[] blockJacobian;
+    /** Row structure of the current block, when it comes from a grid. */
+    GridRows gridRows;
+    boolean gridBlock;
+
+    AlphaBetaChi(int numCoef, int pointDimension) {
+        this(numCoef, null, pointDimension);
+    }
+
+    /**
+     * @param numFunctionCoef number of coefficients of the function
+     * @param active function coefficient index of each active coefficient,
+     *          in increasing order, or {@code null} if all are active
+     * @param pointDimension number of coordinates per point
+     */
+    AlphaBetaChi(int numFunctionCoef, int[] active, int pointDimension) {
+        this.numFunctionCoef = numFunctionCoef;
+        this.active = active;
+        numCoef = (active == null) ? numFunctionCoef : active.length;
+        if (active == null) {
+            needed = null;
+        } else {
+            needed = new boolean[numFunctionCoef];
+            for (int index : active) {
+                needed[index] = true;
+            }
+        }
+        alpha = new double[numCoef * numCoef];
+        beta = new double[numCoef];
+        evaluation = new EstimateFunction.Estimate(numFunctionCoef);
+        evaluation.needed = needed;
+        derivatives = (active == null) ? evaluation.derivatives : new double[numCoef];
+        point = new double[pointDimension];
+        blockPoints = new double[BLOCK_SIZE * pointDimension];
+        blockValues = new double[BLOCK_SIZE];
+        blockWeights = new double[BLOCK_SIZE];
+    }
+
+    /**
+     * Does this instance cover the given set of active coefficients?
+     */
+    boolean matches(int numFunctionCoef, int[] active) {
+        return this.numFunctionCoef == numFunctionCoef && Arrays.equals(this.active, active);
+    }
+
+    /**
+     * Turn compensated summation on or off.
+     */
+    void setCompensated(boolean compensated) {
+        this.compensated = compensated;
+        if (compensated && partialAlpha == null) {
+            partialAlpha = new double[alpha.length];
+            partialBeta = new double[numCoef];
+            alphaCompensation = new double[alpha.length];
+            betaCompensation = new double[numCoef];
+        }
+    }
+
+    void clear() {
+        Arrays.fill(alpha, 0.0);
+        Arrays.fill(beta, 0.0);
+        chiSq = 0;
+        if (compensated) {
+            Arrays.fill(alphaCompensation, 0.0);
+            Arrays.fill(betaCompensation, 0.0);
+            chiCompensation = 0;
+        }
+    }
+
+    /**
+     * Add a block's sums to the totals with Kahan compensation.
+     */
+    private void addCompensated(double[] blockAlpha, double[] blockBeta, double blockChi) {
+        for (int row = 0; row < numCoef; row++) {
+            int rowOffset = row * numCoef;
+            for (int col = row; col < numCoef; col++) {
+                int i = rowOffset + col;
+                double y = blockAlpha[i] - alphaCompensation[i];
+                double t = alpha[i] + y;
+                alphaCompensation[i] = (t - alpha[i]) - y;
+                alpha[i] = t;
+            }
+            double y = blockBeta[row] - betaCompensation[row];
+            double t = beta[row] + y;
+            betaCompensation[row] = (t - beta[row]) - y;
+            beta[row] = t;
+        }
+        addCompensatedChi(blockChi);
+    }
+
+    private void addCompensatedChi(double blockChi) {
+        double y = blockChi - chiCompensation;
+        double t = chiSq + y;
+        chiCompensation = (t - chiSq) - y;
+        chiSq = t;
+    }
+
+    /**
+     * Add the contribution of data points {@code from} (inclusive) to
+     * {@code to} (exclusive) to the running sums.
+     */
+    void accumulate(EstimateFunction function, DataSource data, double[] coef, long from, long to) {
+        GridData grid = gridSource(function, data);
+        for (long start = from; start < to; start += BLOCK_SIZE) {
+            int count = (int) Math.min(BLOCK_SIZE, to - start);
+            data.read(start, count, blockPoints, blockValues, blockWeights);
+            if (grid != null) {
+                grid.getRows(start, count, gridRows);
+            }
+            if (compensated) {
+                Arrays.fill(partialAlpha, 0.0);
+                Arrays.fill(partialBeta, 0.0);
+                double chi = accumulateBlock(function, coef, count, partialAlpha, partialBeta, 0.0);
+                addCompensated(partialAlpha, partialBeta, chi);
+            } else {
+                chiSq = accumulateBlock(function, coef, count, alpha, beta, chiSq);
+            }
+        }
+    }
+
+    /**
+     * Get the grid a pass reads from, if the function can use its row
+     * structure.
+     */
+    private GridData gridSource(EstimateFunction function, DataSource data) {
+        gridBlock = data instanceof GridData && function instanceof GridEstimateFunction;
+        if (!gridBlock) {
+            return null;
+        }
+        if (gridRows == null) {
+            gridRows = new GridRows();
+        }
+        return (GridData) data;
+    }
+
+    /**
+     * Add one block of points to the given alpha and beta sums.
+     * @return {@code chi} plus the Chi-Squared of the block
+     */
+    private double accumulateBlock(EstimateFunction function, double[] coef, int count,
+            double[] alpha, double[] beta, double chi) {
+        if (function instanceof BlockEstimateFunction) {
+            return accumulateBlock((BlockEstimateFunction) function, coef, count, alpha, beta, chi);
+        } else {
+            return accumulatePoints(function, coef, count, alpha, beta, chi);
+        }
+    }
+
+    /**
+     * Accumulate a block of a function that evaluates whole blocks at once.
+     */
+    private double accumulateBlock(BlockEstimateFunction function, double[] coef, int count,
+            double[] alpha, double[] beta, double chi) {
+        ensureBlockBuffers();
+        if (gridBlock) {
+            ((GridEstimateFunction) function).getEstimates(gridRows, blockPoints, count, coef,
+                    blockEstimates, blockJacobian, needed);
+        } else {
+            function.getEstimates(blockPoints, count, coef, blockEstimates, blockJacobian, needed);
+        }
+        // step between the derivatives of one point, and between points
+        int coefStride, pointStride;
+        if (function.getJacobianLayout() == BlockEstimateFunction.Layout.COLUMN_MAJOR) {
+            coefStride = count;
+            pointStride = 1;
+        } else {
+            coefStride = 1;
+            pointStride = numFunctionCoef;
+        }
+        for (int i = 0; i < count; i++) {
+            int pointOffset = i * pointStride;
+            if (active == null) {
+                for (int j = 0, offset = pointOffset; j < numCoef; j++, offset += coefStride) {
+                    derivatives[j] = blockJacobian[offset];
+                }
+            } else {
+                for (int j = 0; j < numCoef; j++) {
+                    derivatives[j] = blockJacobian[pointOffset + active[j] * coefStride];
+                }
+            }
+            double residual = blockValues[i] - blockEstimates[i];
+            double invWeightSq = 1.0 / (blockWeights[i] * blockWeights[i]);
+            chi += residual * residual * invWeightSq;
+            for (int row = 0; row < numCoef; row++) {
+                double derivRow = derivatives[row] * invWeightSq;
+                beta[row] += residual * derivRow;
+                int rowOffset = row * numCoef;
+                for (int col = row; col < numCoef; col++) {
+                    alpha[rowOffset + col] += derivRow * derivatives[col];
+                }
+            }
+        }
+        return chi;
+    }
+
+    private double accumulatePoints(EstimateFunction function, double[] coef, int count,
+            double[] alpha, double[] beta, double chi) {
+        int row, col;
+        double residual, invWeightSq, derivRow;
+        double[] all = evaluation.derivatives;
+        int dim = point.length, offset = 0;
+        // go through each data point and calculate the function and its
+        // derivatives with respect to each coefficient at that point.
+        for (int i = 0; i < count; i++, offset += dim) {
+            for (int d = 0; d < dim; d++) {
+                point[d] = blockPoints[offset + d];
+            }
+            function.getEstimate(point, coef, evaluation);
+            if (active != null) {
+                for (row = 0; row < numCoef; row++) {
+                    derivatives[row] = all[active[row]];
+                }
+            }
+            residual = blockValues[i] - evaluation.estimate;
+            invWeightSq = 1.0 / (blockWeights[i] * blockWeights[i]);
+            chi += residual * residual * invWeightSq;
+            // calculate beta (a column vector), the gradient of the function
+            // with respect to each coefficient, and alpha, the [approximate]
+            // Hessian matrix (upper triangle)
+            for (row = 0; row < numCoef; row++) {
+                derivRow = derivatives[row] * invWeightSq;
+                beta[row] += residual * derivRow;
+                int rowOffset = row * numCoef;
+                for (col = row; col < numCoef; col++) {
+                    alpha[rowOffset + col] += derivRow * derivatives[col];
+                }
+            }
+        }
+        return chi;
+    }
+
+    private void ensureBlockBuffers() {
+        if (blockJacobian == null) {
+            blockEstimates = new double[BLOCK_SIZE];
+            blockJacobian = new double[BLOCK_SIZE * numFunctionCoef];
+        }
+    }
+
+    /**
+     * Add only the Chi-Squared of data points {@code from} (inclusive) to
+     * {@code to} (exclusive), without evaluating derivatives.
+     */
+    void accumulateChiSq(EstimateFunction function, DataSource data, double[] coef, long from, long to) {
+        GridData grid = gridSource(function, data);
+        for (long start = from; start < to; start += BLOCK_SIZE) {
+            int count = (int) Math.min(BLOCK_SIZE, to - start);
+            data.read(start, count, blockPoints, blockValues, blockWeights);
+            if (grid != null) {
+                grid.getRows(start, count, gridRows);
+            }
+            double chi = compensated ? 0.0 : chiSq;
+            if (function instanceof BlockEstimateFunction) {
+                chi = accumulateChiSqBlock((BlockEstimateFunction) function, coef, count, chi);
+            } else {
+                chi = accumulateChiSqBlock(function, coef, count, chi);
+            }
+            if (compensated) {
+                addCompensatedChi(chi);
+            } else {
+                chiSq = chi;
+            }
+        }
+    }
+
+    private double accumulateChiSqBlock(EstimateFunction function, double[] coef, int count, double chi) {
+        double residual;
+        int dim = point.length, offset = 0;
+        for (int i = 0; i < count; i++, offset += dim) {
+            for (int d = 0; d < dim; d++) {
+                point[d] = blockPoints[offset + d];
+            }
+            residual = blockValues[i] - function.getValue(point, coef);
+            chi += residual * residual * (1.0 / (blockWeights[i] * blockWeights[i]));
+        }
+        return chi;
+    }
+
+    private double accumulateChiSqBlock(BlockEstimateFunction function, double[] coef, int count, double chi) {
+        ensureBlockBuffers();
+        if (gridBlock) {
+            ((GridEstimateFunction) function).getValues(gridRows, blockPoints, count, coef, blockEstimates);
+        } else {
+            function.getValues(blockPoints, count, coef, blockEstimates);
+        }
+        for (int i = 0; i < count; i++) {
+            double residual = blockValues[i] - blockEstimates[i];
+            chi += residual * residual * (1.0 / (blockWeights[i] * blockWeights[i]));
+        }
+        return chi;
+    }
+
+    /**
+     * Add the right hand side of the geodesic acceleration equations for data
+     * points {@code from} (inclusive) to {@code to} (exclusive) to beta. Each
+     * point contributes its derivatives times the weighted second directional
+     * derivative of the function along {@code delta}, estimated by the finite
+     * difference (2/h) * ((f(coef + h*delta) - f(coef)) / h - J.delta).
+     * {@code delta} has one entry per function coefficient, zero for the
+     * inactive ones.
+     */
+    void accumulateGeodesic(EstimateFunction function, DataSource data, double[] coef,
+            double[] delta, double[] shiftedCoef, double h, long from, long to) {
+        for (long start = from; start < to; start += BLOCK_SIZE) {
+            int count = (int) Math.min(BLOCK_SIZE, to - start);
+            data.read(start, count, blockPoints, blockValues, blockWeights);
+            accumulateGeodesicBlock(function, coef, delta, shiftedCoef, h, count);
+        }
+    }
+
+    private void accumulateGeodesicBlock(EstimateFunction function, double[] coef,
+            double[] delta, double[] shiftedCoef, double h, int count) {
+        int row;
+        double[] all = evaluation.derivatives;
+        int dim = point.length, offset = 0;
+        for (int i = 0; i < count; i++, offset += dim) {
+            for (int d = 0; d < dim; d++) {
+                point[d] = blockPoints[offset + d];
+            }
+            function.getEstimate(point, coef, evaluation);
+            double shifted = function.getValue(point, shiftedCoef);
+            double directional = 0;
+            for (row = 0; row < numCoef; row++) {
+                int index = (active == null) ? row : active[row];
+                derivatives[row] = all[index];
+                directional += all[index] * delta[index];
+            }
+            double secondDeriv = (2.0 / h) * ((shifted - evaluation.estimate) / h - directional);
+            double weighted = secondDeriv * (1.0 / (blockWeights[i] * blockWeights[i]));
+            for (row = 0; row < numCoef; row++) {
+                beta[row] += derivatives[row] * weighted;
+            }
+        }
+    }
+
+    /**
+     * Add another set of partial sums to this one.
+     */
+    void add(AlphaBetaChi other) {
+        if (compensated && other.compensated) {
+            // fold the other's compensation into its sums before adding
+            for (int i = 0; i < alpha.length; i++) {
+                partialAlpha[i] = other.alpha[i] - other.alphaCompensation[i];
+            }
+            for (int i = 0; i < numCoef; i++) {
+                partialBeta[i] = other.beta[i] - other.betaCompensation[i];
+            }
+            addCompensated(partialAlpha, partialBeta, other.chiSq - other.chiCompensation);
+            return;
+        }
+        for (int i = 0; i < alpha.length; i++) {
+            alpha[i] += other.alpha[i];
+        }
+        for (int i = 0; i < numCoef; i++) {
+            beta[i] += other.beta[i];
+        }
+        chiSq += other.chiSq;
+    }
+
+    /**
+     * Copy the sums into flat alpha and beta arrays, filling in the lower
+     * triangle of alpha from the upper.
+     */
+    void copyTo(double[] alphaOut, double[] betaOut) {
+        for (int row = 0; row < numCoef; row++) {
+            int rowOffset = row * numCoef;
+            alphaOut[rowOffset + row] = alpha[rowOffset + row];
+            for (int col = row + 1; col < numCoef; col++) {
+                double a = alpha[rowOffset + col];
+                alphaOut[rowOffset + col] = a;
+                alphaOut[col * numCoef + row] = a;
+            }
+        }
+        System.arraycopy(beta, 0, betaOut, 0, numCoef);
+    }
+}
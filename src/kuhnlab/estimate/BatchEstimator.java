@@ -0,0 +1,274 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fits many small, independent datasets with the same {@link EstimateFunction}
+ * model. Each fit is a complete {@link LevenbergMarquardtEstimator} estimate,
+ * but the fits are spread across the threads of a {@link ForkJoinPool} and
+ * every worker re-uses one estimator (with its data storage and matrix
+ * workspaces) for all of the fits it runs.
+ * <p>
+ * Results are returned in packed arrays, {@link Result#numCoef} values per
+ * fit for the coefficients and {@code numCoef * numCoef} values per fit for
+ * the covariances.
+ * <p>
+ * The model is called from several threads at once and must be thread-safe.
+ * A BatchEstimator itself runs one batch at a time.
+ *
+ * @author jrkuhn
+ */
+public class BatchEstimator {
+    protected LevenbergMarquardtEstimator template;
+    protected ForkJoinPool pool;
+    protected boolean computeCovariance = true;
+    /** Number of fits a worker claims at a time. */
+    protected int fitsPerClaim = 16;
+
+    /** Worker estimators kept between batches. */
+    protected Worker[] workers;
+
+    /**
+     * Results of a batch of fits.
+     */
+    public static class Result {
+        /** Number of fits in the batch. */
+        public final int numFits;
+        /** Number of coefficients in each fit. */
+        public final int numCoef;
+        /** Estimated coefficients, {@code numCoef} values per fit. */
+        public final double[] coef;
+        /** Chi-Squared of each fit. {@code NaN} if the fit failed. */
+        public final double[] chiSquared;
+        /** Number of iterations used by each fit. */
+        public final int[] iterations;
+        /**
+         * Row-major covariance matrices, {@code numCoef * numCoef} values per
+         * fit, or {@code null} if covariances were not requested.
+         */
+        public final double[] covariance;
+        /** {@code true} for fits that threw an exception (e.g. singular alpha). */
+        public final boolean[] failed;
+
+        public Result(int numFits, int numCoef, boolean withCovariance) {
+            this.numFits = numFits;
+            this.numCoef = numCoef;
+            coef = new double[numFits * numCoef];
+            chiSquared = new double[numFits];
+            iterations = new int[numFits];
+            covariance = withCovariance ? new double[numFits * numCoef * numCoef] : null;
+            failed = new boolean[numFits];
+        }
+    }
+
+    /**
+     * Create a batch estimator with default estimator settings.
+     * @param function model shared by all fits. Must be thread-safe.
+     */
+    public BatchEstimator(EstimateFunction function) {
+        this(new LevenbergMarquardtEstimator(function));
+    }
+
+    /**
+     * Create a batch estimator whose fits use the function and settings
+     * (lambda, stop conditions, etc.) of a template estimator. Settings are
+     * read from the template at the start of every batch, so changes to it
+     * apply to later batches. Any data in the template is ignored.
+     * @param template estimator to copy the function and settings from.
+     */
+    public BatchEstimator(LevenbergMarquardtEstimator template) {
+        this.template = template;
+        this.pool = null;
+        this.workers = null;
+    }
+
+    /**
+     * Set the pool used to run the fits.
+     * @param pool the pool to use, or {@code null} for the
+     *          {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        this.workers = null;
+    }
+
+    /**
+     * Choose whether to compute the covariance of each fit.
+     * @param computeCovariance {@code false} to skip the matrix inversions.
+     */
+    public void setComputeCovariance(boolean computeCovariance) {
+        this.computeCovariance = computeCovariance;
+    }
+
+    /**
+     * Fit many datasets stored one after another in packed arrays.
+     *
+     * @param xs    packed point coordinates of all datasets,
+     *              {@link EstimateFunction#getPointDimension} values per point
+     * @param ys    values at every point
+     * @param sigmas estimated standard deviation of every value
+     * @param offsets {@code numFits + 1} point indices. Dataset {@code k} is
+     *              points {@code offsets[k]} to {@code offsets[k+1] - 1}.
+     * @param coefGuesses initial guesses, either {@code numCoef} values shared
+     *              by every fit or {@code numCoef} values per fit.
+     * @return the packed results
+     * @throws java.lang.RuntimeException if the array sizes do not match
+     */
+    public Result estimate(final double[] xs, final double[] ys, final double[] sigmas,
+            final int[] offsets, double[] coefGuesses) throws RuntimeException {
+        int numFits = offsets.length - 1;
+        return run(numFits, coefGuesses, new DataLoader() {
+            public void load(LevenbergMarquardtEstimator estimator, int fit) {
+                int from = offsets[fit];
+                estimator.addDataPoints(xs, ys, sigmas, from, offsets[fit + 1] - from);
+            }
+        });
+    }
+
+    /**
+     * Fit many datasets, each stored in its own packed arrays.
+     *
+     * @param xs    packed point coordinates of each dataset,
+     *              {@link EstimateFunction#getPointDimension} values per point
+     * @param ys    values of each dataset
+     * @param sigmas estimated standard deviations of each dataset
+     * @param coefGuesses initial guesses, either {@code numCoef} values shared
+     *              by every fit or {@code numCoef} values per fit.
+     * @return the packed results
+     * @throws java.lang.RuntimeException if the array sizes do not match
+     */
+    public Result estimate(final double[][] xs, final double[][] ys, final double[][] sigmas,
+            double[] coefGuesses) throws RuntimeException {
+        if (xs.length != ys.length || ys.length != sigmas.length) {
+            throw new RuntimeException("Number of coordinate, value, and sigma arrays do not match");
+        }
+        return run(ys.length, coefGuesses, new DataLoader() {
+            public void load(LevenbergMarquardtEstimator estimator, int fit) {
+                estimator.addDataPoints(xs[fit], ys[fit], sigmas[fit]);
+            }
+        });
+    }
+
+    /**
+     * Copies one dataset into a worker's estimator.
+     */
+    protected interface DataLoader {
+        void load(LevenbergMarquardtEstimator estimator, int fit);
+    }
+
+    protected Result run(int numFits, double[] coefGuesses, DataLoader loader) {
+        int numCoef = template.getFunction().getNumCoef();
+        if (numFits < 0) {
+            throw new RuntimeException("Dataset offsets must have at least one entry");
+        }
+        if (coefGuesses.length != numCoef && coefGuesses.length != numFits * numCoef) {
+            throw new RuntimeException("Expected " + numCoef + " or " + (numFits * numCoef) +
+                    " initial coefficients, got " + coefGuesses.length);
+        }
+        Result result = new Result(numFits, numCoef, computeCovariance);
+        ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+        int numWorkers = Math.max(1, Math.min(p.getParallelism(),
+                (numFits + fitsPerClaim - 1) / fitsPerClaim));
+        if (workers == null || workers.length < numWorkers) {
+            workers = new Worker[numWorkers];
+        }
+        AtomicInteger nextFit = new AtomicInteger(0);
+        Worker[] tasks = new Worker[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            if (workers[w] == null) {
+                workers[w] = new Worker(new LevenbergMarquardtEstimator(template));
+            }
+            tasks[w] = workers[w];
+            // pick up any settings changed since the worker was created
+            tasks[w].estimator.copySettings(template);
+            tasks[w].start(result, coefGuesses, loader, nextFit);
+        }
+        p.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs fits one after another with a single re-used estimator, claiming
+     * blocks of fits from a shared counter until none are left.
+     */
+    protected class Worker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final LevenbergMarquardtEstimator estimator;
+        Result result;
+        double[] coefGuesses;
+        DataLoader loader;
+        AtomicInteger nextFit;
+
+        Worker(LevenbergMarquardtEstimator estimator) {
+            this.estimator = estimator;
+        }
+
+        void start(Result result, double[] coefGuesses, DataLoader loader, AtomicInteger nextFit) {
+            this.result = result;
+            this.coefGuesses = coefGuesses;
+            this.loader = loader;
+            this.nextFit = nextFit;
+            reinitialize();
+        }
+
+        @Override
+        protected void compute() {
+            int numFits = result.numFits, numCoef = result.numCoef;
+            boolean sharedGuess = coefGuesses.length == numCoef;
+            double[] guess = new double[numCoef];
+            int first;
+            while ((first = nextFit.getAndAdd(fitsPerClaim)) < numFits) {
+                int last = Math.min(numFits, first + fitsPerClaim);
+                for (int fit = first; fit < last; fit++) {
+                    System.arraycopy(coefGuesses, sharedGuess ? 0 : fit * numCoef, guess, 0, numCoef);
+                    fitOne(fit, guess);
+                }
+            }
+            // drop references to the caller's arrays
+            result = null;
+            coefGuesses = null;
+            loader = null;
+        }
+
+        void fitOne(int fit, double[] guess) {
+            int numCoef = result.numCoef;
+            try {
+                estimator.clearData();
+                loader.load(estimator, fit);
+                double[] coef = estimator.estimate(guess);
+                System.arraycopy(coef, 0, result.coef, fit * numCoef, numCoef);
+                result.chiSquared[fit] = estimator.estimatedChiSquared();
+                result.iterations[fit] = estimator.estimatedIterations();
+                if (result.covariance != null) {
+                    double[][] covar = estimator.estimatedCovariance();
+                    int offset = fit * numCoef * numCoef;
+                    for (int row = 0; row < numCoef; row++) {
+                        System.arraycopy(covar[row], 0, result.covariance, offset + row * numCoef, numCoef);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                result.failed[fit] = true;
+                result.chiSquared[fit] = Double.NaN;
+                Arrays.fill(result.coef, fit * numCoef, (fit + 1) * numCoef, Double.NaN);
+                if (result.covariance != null) {
+                    int size = numCoef * numCoef;
+                    Arrays.fill(result.covariance, fit * size, (fit + 1) * size, Double.NaN);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Imports data points from raw binary dumps: an optional fixed-size header
+ * followed by fixed-size records, each holding the same number of columns
+ * of one numeric type. Values are little-endian unless set otherwise with
+ * {@link #setByteOrder}.
+ * <p>
+ * Because records have a fixed size, chunk boundaries are found without
+ * scanning the data, and the number of points is known before parsing, so
+ * the target storage is sized once up front.
+ *
+ * @author jrkuhn
+ */
+public class BinaryDataImporter extends DataImporter {
+    /**
+     * The type of every column of a record.
+     */
+    public enum Type {
+        FLOAT64(8), FLOAT32(4), INT32(4), INT16(2), UINT16(2);
+
+        public final int bytes;
+
+        Type(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    protected final int numColumns;
+    protected final Type type;
+    protected final int recordBytes;
+    protected int headerBytes = 0;
+
+    /**
+     * Create an importer for records of {@code numColumns} values. By
+     * default, columns {@code 0} to {@code dimension - 1} hold the
+     * coordinates and column {@code dimension} the value. Column
+     * {@code dimension + 1}, if there is one, holds the sigma; otherwise
+     * every point has a sigma of 1.
+     * @param dimension number of coordinates per point
+     * @param numColumns number of values in each record
+     * @param type type of every value
+     */
+    public BinaryDataImporter(int dimension, int numColumns, Type type) {
+        super(dimension);
+        if (numColumns < dimension + 1) {
+            throw new RuntimeException("Records need at least " + (dimension + 1) +
+                    " columns for points of dimension " + dimension);
+        }
+        this.numColumns = numColumns;
+        this.type = type;
+        this.recordBytes = numColumns * type.bytes;
+        if (numColumns > dimension + 1) {
+            setColumns(coordinateColumns, valueColumn, dimension + 1);
+        }
+    }
+
+    @Override
+    public void setColumns(int[] coordinateColumns, int valueColumn, int sigmaColumn) throws RuntimeException {
+        // called by the superclass constructor before numColumns is set
+        if (numColumns > 0 && Math.max(valueColumn, sigmaColumn) >= numColumns) {
+            throw new RuntimeException("Records only have " + numColumns + " columns");
+        }
+        for (int column : coordinateColumns) {
+            if (numColumns > 0 && column >= numColumns) {
+                throw new RuntimeException("Records only have " + numColumns + " columns");
+            }
+        }
+        super.setColumns(coordinateColumns, valueColumn, sigmaColumn);
+    }
+
+    /**
+     * Set the number of bytes to skip at the start of the file.
+     * @param headerBytes header length in bytes
+     */
+    public void setHeaderBytes(int headerBytes) {
+        if (headerBytes < 0) {
+            throw new RuntimeException("Header length must not be negative");
+        }
+        this.headerBytes = headerBytes;
+    }
+
+    /**
+     * Set the byte order of the values.
+     * @param byteOrder the byte order, {@link ByteOrder#LITTLE_ENDIAN} by
+     *          default
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+    }
+
+    public int getRecordBytes() {
+        return recordBytes;
+    }
+
+    @Override
+    protected long expectedPoints(long fileBytes) {
+        return Math.max(0, fileBytes - headerBytes) / recordBytes;
+    }
+
+    @Override
+    protected int headerBytes(ByteBuffer buffer, int limit, boolean last) throws IOException {
+        if (headerBytes > limit) {
+            if (last) {
+                throw new IOException("Input is shorter than its " + headerBytes + " byte header");
+            }
+            return -1;
+        }
+        return headerBytes;
+    }
+
+    @Override
+    protected int recordsEnd(ByteBuffer buffer, int start, int limit, boolean last) throws IOException {
+        int extra = (limit - start) % recordBytes;
+        if (last && extra != 0) {
+            throw new IOException("Input ends with a partial record of " + extra + " bytes");
+        }
+        return limit - extra;
+    }
+
+    @Override
+    protected int alignChunk(ByteBuffer buffer, int start, int pos, int end) {
+        int records = (pos - start + recordBytes - 1) / recordBytes;
+        return Math.min(end, start + records * recordBytes);
+    }
+
+    @Override
+    protected void parse(Chunk chunk) {
+        ByteBuffer b = chunk.buffer;
+        int numPoints = (chunk.to - chunk.from) / recordBytes;
+        chunk.ensureCapacity(numPoints);
+        int dim = dimension, size = type.bytes;
+        double[] xs = chunk.xs, ys = chunk.ys, sigmas = chunk.sigmas;
+        int valueOffset = valueColumn * size;
+        int sigmaOffset = sigmaColumn * size;
+        int p = 0;
+        for (int i = 0, pos = chunk.from; i < numPoints; i++, pos += recordBytes) {
+            for (int d = 0; d < dim; d++) {
+                xs[p++] = get(b, pos + coordinateColumns[d] * size);
+            }
+            ys[i] = get(b, pos + valueOffset);
+            sigmas[i] = (sigmaColumn >= 0) ? get(b, pos + sigmaOffset) : sigma;
+        }
+        chunk.count = numPoints;
+    }
+
+    private double get(ByteBuffer b, int pos) {
+        switch (type) {
+            case FLOAT64:
+                return b.getDouble(pos);
+            case FLOAT32:
+                return b.getFloat(pos);
+            case INT32:
+                return b.getInt(pos);
+            case INT16:
+                return b.getShort(pos);
+            default:
+                return b.getShort(pos) & 0xFFFF;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * An {@link EstimateFunction} that can evaluate a whole block of points in one
+ * call. The estimator reads the data a block at a time and, when the function
+ * implements this interface, asks for the values and Jacobian of the block at
+ * once instead of calling {@link #getEstimate} per point.
+ * <p>
+ * That lets an implementation compute terms that depend only on the
+ * coefficients (such as {@code 1/width} of a Gaussian) once per block, and
+ * write its inner loops as straight passes over primitive arrays, which the
+ * JIT can unroll and vectorize.
+ *
+ * @author jrkuhn
+ */
+public interface BlockEstimateFunction extends EstimateFunction {
+    /**
+     * Memory layout of the Jacobian filled by {@link #getEstimates}.
+     */
+    public enum Layout {
+        /**
+         * All derivatives of one point together: the derivative with respect
+         * to coefficient {@code j} at point {@code i} is at
+         * {@code i * numCoef + j}.
+         */
+        ROW_MAJOR,
+        /**
+         * All points of one derivative together: the derivative with respect
+         * to coefficient {@code j} at point {@code i} is at
+         * {@code j * numPoints + i}.
+         */
+        COLUMN_MAJOR
+    }
+
+    /**
+     * Get the layout {@link #getEstimates} writes the Jacobian in.
+     * @return the Jacobian layout
+     */
+    public default Layout getJacobianLayout() {
+        return Layout.ROW_MAJOR;
+    }
+
+    /**
+     * Get the values and derivatives at a block of points.
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     * @param jacobian  receives the derivatives at each point, at least
+     *                  {@code numPoints * getNumCoef()} long, laid out as
+     *                  given by {@link #getJacobianLayout}
+     */
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian);
+
+    /**
+     * Get the values and derivatives at a block of points, when some
+     * derivatives are not needed. The entries of {@code jacobian} for
+     * coefficients flagged {@code false} in {@code needed} are ignored, so an
+     * expensive function may skip them. The default implementation computes
+     * them anyway.
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     * @param jacobian  receives the derivatives at each point, laid out as
+     *                  given by {@link #getJacobianLayout}
+     * @param needed    which derivatives are used, or {@code null} for all
+     */
+    public default void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian, boolean[] needed) {
+        getEstimates(points, numPoints, coef, values, jacobian);
+    }
+
+    /**
+     * Get only the values at a block of points. The default implementation
+     * calls {@link #getValue} for each point, passing it a re-used per-thread
+     * buffer.
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     */
+    public default void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        int dim = getPointDimension();
+        double[] point = ScratchPoint.acquire(dim);
+        try {
+            for (int i = 0, offset = 0; i < numPoints; i++, offset += dim) {
+                System.arraycopy(points, offset, point, 0, dim);
+                values[i] = getValue(point, coef);
+            }
+        } finally {
+            ScratchPoint.release(point);
+        }
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk import of data points from files, parsed in parallel straight into
+ * packed arrays. See {@link TextDataImporter} for CSV and TSV files and
+ * {@link BinaryDataImporter} for raw binary dumps.
+ * <p>
+ * A file is read one window of {@link #setWindowBytes window bytes} at a
+ * time. Each window is split at record boundaries into chunks that are
+ * parsed concurrently on the threads of a {@link ForkJoinPool}, each into
+ * its own packed coordinate, value and sigma arrays. These arrays are
+ * re-used from window to window, so no objects are created per row. The
+ * chunks of a window are then passed to a {@link Handler} in file order.
+ * <p>
+ * By default each window is memory-mapped. In streaming mode (see
+ * {@link #setStreaming}) the file is read sequentially through one re-used
+ * direct buffer instead, which also works for pipes and sockets (see
+ * {@link #read(ReadableByteChannel, Handler)}). Either way, memory use is
+ * bounded by the window size, whatever the size of the file.
+ * <p>
+ * The columns holding the coordinates, the value and (optionally) the sigma
+ * of each point are set with {@link #setColumns}. After each read, the
+ * bytes and points read and the throughput in MB/s are available from
+ * {@link #getBytesRead}, {@link #getPointsRead} and
+ * {@link #getMegabytesPerSecond}.
+ *
+ * @author jrkuhn
+ */
+public abstract class DataImporter {
+    /**
+     * Receives the points of each parsed chunk, in file order.
+     */
+    public interface Handler {
+        /**
+         * Accept a block of points. The arrays are re-used for later blocks,
+         * so their contents must be copied before returning.
+         * @param xs packed coordinates, {@code dimension} values per point
+         * @param ys values at each point
+         * @param sigmas estimated standard deviation of each value
+         * @param count number of points in the block
+         */
+        void points(double[] xs, double[] ys, double[] sigmas, int count) throws IOException;
+    }
+
+    public static final int DEFAULT_WINDOW_BYTES = 64 << 20;
+    /** Chunks smaller than this are not worth a task of their own. */
+    protected static final int MIN_CHUNK_BYTES = 1 << 16;
+    /** Chunks per thread, so threads that finish early can take more work. */
+    protected static final int CHUNKS_PER_THREAD = 4;
+
+    protected final int dimension;
+    protected int[] coordinateColumns;
+    protected int valueColumn;
+    protected int sigmaColumn;
+    protected double sigma = 1.0;
+    /**
+     * For each input column, {@code -1} if it is not used, else the slot it
+     * is parsed into: {@code 0} to {@code dimension - 1} for coordinates,
+     * {@code dimension} for the value and {@code dimension + 1} for sigma.
+     */
+    protected int[] columnSlot;
+    protected int numMapped;
+
+    protected int windowBytes = DEFAULT_WINDOW_BYTES;
+    protected boolean streaming = false;
+    protected ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+    protected ForkJoinPool pool;
+    protected Chunk[] chunks;
+
+    protected long bytesRead, pointsRead, elapsedNanos;
+
+    /**
+     * Create an importer. By default, columns {@code 0} to
+     * {@code dimension - 1} hold the coordinates, column {@code dimension}
+     * holds the value, and every point has a sigma of 1.
+     * @param dimension number of coordinates per point
+     */
+    protected DataImporter(int dimension) {
+        if (dimension < 1) {
+            throw new RuntimeException("Point dimension must be positive");
+        }
+        this.dimension = dimension;
+        int[] coords = new int[dimension];
+        for (int d = 0; d < dimension; d++) {
+            coords[d] = d;
+        }
+        setColumns(coords, dimension, -1);
+    }
+
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    /**
+     * Choose which input columns make up each point. Columns are numbered
+     * from 0, and other columns are skipped.
+     * @param coordinateColumns column of each coordinate,
+     *          {@link #getPointDimension} long
+     * @param valueColumn column of the value
+     * @param sigmaColumn column of the sigma, or {@code -1} to give every
+     *          point the sigma set with {@link #setSigma}
+     * @throws java.lang.RuntimeException if the columns are not distinct and
+     *          valid
+     */
+    public void setColumns(int[] coordinateColumns, int valueColumn, int sigmaColumn) throws RuntimeException {
+        if (coordinateColumns.length != dimension) {
+            throw new RuntimeException("Expected " + dimension + " coordinate columns");
+        }
+        int maxColumn = Math.max(valueColumn, sigmaColumn);
+        for (int column : coordinateColumns) {
+            maxColumn = Math.max(maxColumn, column);
+        }
+        int[] slots = new int[maxColumn + 1];
+        Arrays.fill(slots, -1);
+        for (int d = 0; d <= dimension + 1; d++) {
+            int column = (d < dimension) ? coordinateColumns[d] : (d == dimension) ? valueColumn : sigmaColumn;
+            if (d == dimension + 1 && column < 0) {
+                break;
+            }
+            if (column < 0) {
+                throw new RuntimeException("Column numbers must not be negative");
+            }
+            if (slots[column] >= 0) {
+                throw new RuntimeException("Column " + column + " is mapped more than once");
+            }
+            slots[column] = d;
+        }
+        this.coordinateColumns = coordinateColumns.clone();
+        this.valueColumn = valueColumn;
+        this.sigmaColumn = Math.max(sigmaColumn, -1);
+        this.columnSlot = slots;
+        this.numMapped = dimension + ((sigmaColumn >= 0) ? 2 : 1);
+    }
+
+    /**
+     * Set the sigma of every point, used when there is no sigma column.
+     * @param sigma estimated standard deviation of every value
+     */
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+    }
+
+    /**
+     * Set how much of the file is read and parsed at once. No record may be
+     * longer than a window.
+     * @param windowBytes window size in bytes (64 MB by default)
+     */
+    public void setWindowBytes(int windowBytes) {
+        if (windowBytes < 1) {
+            throw new RuntimeException("Window size must be positive");
+        }
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * Choose between memory-mapping each window of a file (the default) and
+     * reading the file sequentially into a re-used buffer. Streaming avoids
+     * the cost of setting up a mapping per window and suits file systems
+     * where mapping is slow, such as network shares.
+     * @param streaming {@code true} to read files sequentially
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Set the pool that parses chunks in parallel.
+     * @param pool the pool to use, or {@code null} for the
+     *          {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Read every point of a file, passing them to a handler a block at a
+     * time.
+     * @param file file to read
+     * @param handler receives the points, in file order
+     * @throws java.io.IOException if the file cannot be read or is malformed
+     */
+    public void read(File file, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        bytesRead = 0;
+        pointsRead = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (streaming) {
+                readStream(channel, handler);
+            } else {
+                readMapped(channel, handler);
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Read every point from a channel, such as a pipe or socket, passing
+     * them to a handler a block at a time. The channel is read to its end
+     * but not closed.
+     * @param channel channel to read
+     * @param handler receives the points, in order
+     * @throws java.io.IOException if the channel cannot be read or the data
+     *          is malformed
+     */
+    public void read(ReadableByteChannel channel, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        bytesRead = 0;
+        pointsRead = 0;
+        try {
+            readStream(channel, handler);
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Add every point of a file to an estimator's own storage.
+     * @param file file to read
+     * @param estimator estimator to add points to
+     * @throws java.io.IOException if the file cannot be read or is malformed
+     */
+    public void readInto(File file, final LevenbergMarquardtEstimator estimator) throws IOException {
+        checkDimension(estimator.getFunction().getPointDimension());
+        long expected = expectedPoints(file.length());
+        if (expected > 0) {
+            estimator.ensureDataCapacity(estimator.getNumDataPoints() + expected);
+        }
+        read(file, new Handler() {
+            public void points(double[] xs, double[] ys, double[] sigmas, int count) {
+                estimator.addDataPoints(xs, ys, sigmas, 0, count);
+            }
+        });
+    }
+
+    /**
+     * Append every point of a file to packed storage.
+     * @param file file to read
+     * @param data storage to append to
+     * @throws java.io.IOException if the file cannot be read or is malformed
+     */
+    public void readInto(File file, final PackedData data) throws IOException {
+        checkDimension(data.getPointDimension());
+        long expected = expectedPoints(file.length());
+        if (expected > 0) {
+            data.ensureCapacity(checkedCapacity(data.size() + expected));
+        }
+        read(file, new Handler() {
+            public void points(double[] xs, double[] ys, double[] sigmas, int count) {
+                data.addAll(xs, ys, sigmas, 0, count);
+            }
+        });
+    }
+
+    /**
+     * Append every point of a file to single-precision storage.
+     * @param file file to read
+     * @param data storage to append to
+     * @throws java.io.IOException if the file cannot be read or is malformed
+     */
+    public void readInto(File file, final FloatData data) throws IOException {
+        checkDimension(data.getPointDimension());
+        long expected = expectedPoints(file.length());
+        if (expected > 0) {
+            data.ensureCapacity(checkedCapacity(data.size() + expected));
+        }
+        read(file, new Handler() {
+            public void points(double[] xs, double[] ys, double[] sigmas, int count) {
+                data.addAll(xs, ys, sigmas, 0, count);
+            }
+        });
+    }
+
+    /**
+     * Convert a file to the binary format of {@link MappedDataSource}, so
+     * that datasets larger than the heap can be fitted out-of-core.
+     * @param file file to read
+     * @param writer writer to append points to
+     * @throws java.io.IOException if either file cannot be read or written,
+     *          or the input is malformed
+     */
+    public void readInto(File file, final MappedDataWriter writer) throws IOException {
+        checkDimension(writer.dimension);
+        read(file, new Handler() {
+            public void points(double[] xs, double[] ys, double[] sigmas, int count) throws IOException {
+                writer.addAll(xs, ys, sigmas, count);
+            }
+        });
+    }
+
+    /**
+     * Get the number of bytes consumed by the last read.
+     * @return bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Get the number of points produced by the last read.
+     * @return points read
+     */
+    public long getPointsRead() {
+        return pointsRead;
+    }
+
+    /**
+     * Get the wall-clock time of the last read, including the time spent in
+     * the handler.
+     * @return elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the throughput of the last read.
+     * @return megabytes (10<sup>6</sup> bytes) read per second
+     */
+    public double getMegabytesPerSecond() {
+        return (elapsedNanos > 0) ? bytesRead * 1e3 / elapsedNanos : 0;
+    }
+
+    /**
+     * Get the number of points in a file, if it can be known before parsing.
+     * @param fileBytes length of the file
+     * @return number of points, or {@code -1} if not known
+     */
+    protected long expectedPoints(long fileBytes) {
+        return -1;
+    }
+
+    /**
+     * Get the length of the header at the start of the input.
+     * @param buffer the first window of the input
+     * @param limit number of bytes in the window
+     * @param last {@code true} if the window holds the rest of the input
+     * @return bytes to skip, or {@code -1} if the header does not end
+     *          within the window
+     */
+    protected abstract int headerBytes(ByteBuffer buffer, int limit, boolean last) throws IOException;
+
+    /**
+     * Find where the last complete record of a window ends.
+     * @param buffer the window
+     * @param start offset of the first record
+     * @param limit number of bytes in the window
+     * @param last {@code true} if the window holds the rest of the input
+     * @return offset just past the last complete record
+     * @throws java.io.IOException if the input ends with an incomplete
+     *          record that cannot be parsed
+     */
+    protected abstract int recordsEnd(ByteBuffer buffer, int start, int limit, boolean last) throws IOException;
+
+    /**
+     * Move a chunk boundary forward to the start of a record.
+     * @param buffer the window
+     * @param start offset of the first record of the window
+     * @param pos proposed boundary
+     * @param end end of the records of the window
+     * @return offset of the first record at or after {@code pos}
+     */
+    protected abstract int alignChunk(ByteBuffer buffer, int start, int pos, int end);
+
+    /**
+     * Parse the records of one chunk into its arrays. Runs concurrently with
+     * the parsing of other chunks, so it may only change the chunk.
+     * @param chunk the chunk, with its byte range set and its count zero
+     */
+    protected abstract void parse(Chunk chunk);
+
+    protected void readMapped(FileChannel channel, Handler handler) throws IOException {
+        long fileBytes = channel.size();
+        long pos = 0;
+        boolean first = true;
+        while (pos < fileBytes) {
+            int length = (int) Math.min(windowBytes, fileBytes - pos);
+            boolean last = pos + length == fileBytes;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            buffer.order(byteOrder);
+            int start = 0;
+            if (first) {
+                start = firstRecord(buffer, length, last);
+                first = false;
+            }
+            int used = parseWindow(buffer, start, length, last, pos, handler);
+            pos += used;
+            bytesRead = pos;
+            if (last) {
+                break;
+            }
+            if (used == 0) {
+                throw new IOException("Record at byte " + pos + " is longer than the window of " +
+                        windowBytes + " bytes");
+            }
+        }
+    }
+
+    protected void readStream(ReadableByteChannel channel, Handler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(windowBytes).order(byteOrder);
+        long pos = 0;
+        boolean first = true, eof = false;
+        while (true) {
+            while (!eof && buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                }
+            }
+            buffer.flip();
+            int length = buffer.limit();
+            int start = 0;
+            if (first) {
+                start = firstRecord(buffer, length, eof);
+                first = false;
+            }
+            int used = parseWindow(buffer, start, length, eof, pos, handler);
+            pos += used;
+            bytesRead = pos;
+            if (eof) {
+                break;
+            }
+            if (used == 0) {
+                throw new IOException("Record at byte " + pos + " is longer than the window of " +
+                        windowBytes + " bytes");
+            }
+            buffer.position(used);
+            buffer.compact();
+        }
+    }
+
+    private int firstRecord(ByteBuffer buffer, int length, boolean last) throws IOException {
+        int start = headerBytes(buffer, length, last);
+        if (start < 0) {
+            throw new IOException("Header is longer than the window of " + windowBytes + " bytes");
+        }
+        return start;
+    }
+
+    /**
+     * Parse the complete records of one window in parallel and hand them on.
+     * @return offset just past the last record parsed
+     */
+    protected int parseWindow(ByteBuffer buffer, int start, int limit, boolean last,
+            long windowOffset, Handler handler) throws IOException {
+        int end = recordsEnd(buffer, start, limit, last);
+        if (end <= start) {
+            return end;
+        }
+        ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+        int numChunks = (int) Math.max(1, Math.min((long) p.getParallelism() * CHUNKS_PER_THREAD,
+                (end - start) / MIN_CHUNK_BYTES));
+        if (chunks == null || chunks.length < numChunks) {
+            Chunk[] grown = new Chunk[numChunks];
+            if (chunks != null) {
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            }
+            chunks = grown;
+        }
+        final Chunk[] tasks = new Chunk[numChunks];
+        int from = start;
+        for (int c = 0; c < numChunks; c++) {
+            if (chunks[c] == null) {
+                chunks[c] = new Chunk();
+            }
+            int to = end;
+            if (c < numChunks - 1) {
+                int target = start + (int) ((long) (end - start) * (c + 1) / numChunks);
+                to = Math.max(from, alignChunk(buffer, start, target, end));
+            }
+            tasks[c] = chunks[c];
+            tasks[c].start(buffer, from, to, windowOffset);
+            from = to;
+        }
+        if (numChunks == 1) {
+            tasks[0].compute();
+        } else {
+            p.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        for (Chunk chunk : tasks) {
+            if (chunk.error != null) {
+                throw new IOException(chunk.error);
+            }
+        }
+        for (Chunk chunk : tasks) {
+            if (chunk.count > 0) {
+                handler.points(chunk.xs, chunk.ys, chunk.sigmas, chunk.count);
+                pointsRead += chunk.count;
+            }
+            // drop the reference to the window
+            chunk.buffer = null;
+        }
+        return end;
+    }
+
+    private void checkDimension(int targetDimension) {
+        if (targetDimension != dimension) {
+            throw new RuntimeException("Importer dimension " + dimension +
+                    " does not match target dimension " + targetDimension);
+        }
+    }
+
+    private static int checkedCapacity(long capacity) {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many points for in-memory storage");
+        }
+        return (int) capacity;
+    }
+
+    /**
+     * A byte range of a window and the points parsed from it. The arrays are
+     * kept from window to window and only grow.
+     */
+    protected class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        ByteBuffer buffer;
+        /** Byte range within the window, and the window's offset in the input. */
+        int from, to;
+        long windowOffset;
+        double[] xs = new double[0], ys = new double[0], sigmas = new double[0];
+        int count;
+        /** Scratch for parsers that copy the chunk's bytes. */
+        byte[] bytes;
+        /** Scratch for one row's mapped columns, by slot. */
+        final double[] row = new double[dimension + 2];
+        /** Description of the first malformed record, or {@code null}. */
+        String error;
+
+        void start(ByteBuffer buffer, int from, int to, long windowOffset) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.windowOffset = windowOffset;
+            count = 0;
+            error = null;
+            reinitialize();
+        }
+
+        /**
+         * Make sure there is room for at least {@code capacity} points.
+         */
+        void ensureCapacity(int capacity) {
+            if (capacity <= ys.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, ys.length + (ys.length >> 1));
+            xs = Arrays.copyOf(xs, newCapacity * dimension);
+            ys = Arrays.copyOf(ys, newCapacity);
+            sigmas = Arrays.copyOf(sigmas, newCapacity);
+        }
+
+        /**
+         * Append the point held in {@link #row}.
+         */
+        void addRow() {
+            if (count == ys.length) {
+                ensureCapacity(count + 1);
+            }
+            System.arraycopy(row, 0, xs, count * dimension, dimension);
+            ys[count] = row[dimension];
+            sigmas[count] = (sigmaColumn >= 0) ? row[dimension + 1] : sigma;
+            count++;
+        }
+
+        @Override
+        protected void compute() {
+            parse(this);
+        }
+    }
+}
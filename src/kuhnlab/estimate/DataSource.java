@@ -0,0 +1,43 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A read-only sequence of data points for an estimate. Each point has
+ * {@link #getPointDimension} coordinates, a measured value, and a weight
+ * (the estimated standard deviation of the value).
+ * <p>
+ * The estimator streams over a source in blocks with {@link #read}, so a
+ * source need not hold its points on the heap. Reads of different ranges
+ * may happen concurrently from several threads, so {@link #read} must not
+ * change any shared state.
+ *
+ * @author jrkuhn
+ */
+public interface DataSource {
+    /**
+     * Get number of coordinates in each point.
+     * @return dimension of a point
+     */
+    public int getPointDimension();
+
+    /**
+     * Get the number of points in this source.
+     * @return number of data points
+     */
+    public long size();
+
+    /**
+     * Copy a block of consecutive points into packed arrays.
+     * @param from index of the first point to read
+     * @param count number of points to read
+     * @param points receives the coordinates, {@link #getPointDimension}
+     *          values per point
+     * @param values receives the value at each point
+     * @param weights receives the weight of each point
+     */
+    public void read(long from, int count, double[] points, double[] values, double[] weights);
+}
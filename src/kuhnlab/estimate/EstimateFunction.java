@@ -22,6 +22,13 @@ public interface EstimateFunction {
         public double estimate;
         /** Derivatives of f with respect to each parameter, <b>A</b>. */
         public double[] derivatives;
+        /**
+         * Which derivatives the estimator will use, or {@code null} if it uses
+         * all of them. The derivatives of coefficients flagged {@code false}
+         * (those held fixed) are ignored, so an expensive function may skip
+         * computing them. Set by the caller; do not modify.
+         */
+        public boolean[] needed;
         
         public Estimate(int numCoeff) {
             derivatives = new double[numCoeff];
@@ -61,4 +68,39 @@ public interface EstimateFunction {
      * @return the estimated value and derivatives at the data point
      */
     public Estimate getEstimate(double[] point, double coef[]);
+
+    /**
+     * Get the estimated function value and coefficients at a point, writing
+     * them into a caller-supplied buffer. The estimator calls this method once
+     * per data point on every pass, re-using the same {@code result}, so
+     * implementations should override it to avoid allocating.
+     * <p>
+     * The default implementation adapts {@link #getEstimate(double[], double[])}
+     * and copies its result.
+     * @param point     point to evalute function at
+     * @param coef      coefficients to use to evaluate function
+     * @param result    buffer to receive the estimated value and derivatives.
+     *                  {@code result.derivatives} has length {@link #getNumCoef}
+     */
+    public default void getEstimate(double[] point, double[] coef, Estimate result) {
+        Estimate est = getEstimate(point, coef);
+        result.estimate = est.estimate;
+        System.arraycopy(est.derivatives, 0, result.derivatives, 0, result.derivatives.length);
+    }
+
+    /**
+     * Get only the estimated function value at a point, without derivatives.
+     * The estimator uses this to compute Chi-Squared for trial coefficients,
+     * and only asks for derivatives once a trial step has been accepted.
+     * <p>
+     * The default implementation calls {@link #getEstimate(double[], double[])}
+     * and discards the derivatives. Override it when the value alone is
+     * cheaper to compute.
+     * @param point     point to evalute function at
+     * @param coef      coefficients to use to evaluate function
+     * @return the estimated value at the data point
+     */
+    public default double getValue(double[] point, double[] coef) {
+        return getEstimate(point, coef).estimate;
+    }
 }
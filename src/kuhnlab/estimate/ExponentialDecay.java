@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A multi-exponential decay, optionally on a constant background:
+ * <pre>
+ *   f(t) = sum_k A_k exp(-t / tau_k) [+ B]
+ * </pre>
+ * The amplitude and lifetime of each component are stored in consecutive
+ * coefficients, followed by the background if there is one. Each exponential
+ * is shared between the value and both derivatives, and nothing is allocated
+ * per point.
+ *
+ * @author jrkuhn
+ */
+public class ExponentialDecay implements BlockEstimateFunction {
+    protected final int numComponents;
+    protected final boolean background;
+    protected final int numCoef;
+
+    /**
+     * Create a multi-exponential decay with no background.
+     * @param numComponents number of exponentials
+     */
+    public ExponentialDecay(int numComponents) {
+        this(numComponents, false);
+    }
+
+    /**
+     * Create a multi-exponential decay.
+     * @param numComponents number of exponentials
+     * @param background {@code true} to add a constant background coefficient
+     */
+    public ExponentialDecay(int numComponents, boolean background) {
+        if (numComponents < 1) {
+            throw new RuntimeException("Need at least one component");
+        }
+        this.numComponents = numComponents;
+        this.background = background;
+        numCoef = 2 * numComponents + (background ? 1 : 0);
+    }
+
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getPointDimension() {
+        return 1;
+    }
+
+    public int getNumCoef() {
+        return numCoef;
+    }
+
+    public String getCoefName(int index) {
+        if (background && index == numCoef - 1) {
+            return "background";
+        }
+        int k = index / 2 + 1;
+        return (index % 2 == 0) ? "amplitude" + k : "lifetime" + k;
+    }
+
+    public Estimate getEstimate(double[] point, double[] coef) {
+        Estimate result = new Estimate(numCoef);
+        getEstimate(point, coef, result);
+        return result;
+    }
+
+    @Override
+    public void getEstimate(double[] point, double[] coef, Estimate result) {
+        double t = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        double[] dyda = result.derivatives;
+        for (int k = 0; k < 2 * numComponents; k += 2) {
+            double invTau = 1.0 / coef[k + 1];
+            double ex = Math.exp(-t * invTau);
+            double term = coef[k] * ex;
+            y += term;
+            dyda[k] = ex;
+            dyda[k + 1] = term * t * invTau * invTau;
+        }
+        if (background) {
+            dyda[numCoef - 1] = 1.0;
+        }
+        result.estimate = y;
+    }
+
+    @Override
+    public double getValue(double[] point, double[] coef) {
+        double t = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        for (int k = 0; k < 2 * numComponents; k += 2) {
+            y += coef[k] * Math.exp(-t / coef[k + 1]);
+        }
+        return y;
+    }
+
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        for (int k = 0; k < 2 * numComponents; k += 2) {
+            double amp = coef[k], invTau = 1.0 / coef[k + 1];
+            double lifetimeScale = amp * invTau * invTau;
+            for (int i = 0, offset = k; i < numPoints; i++, offset += numCoef) {
+                double t = points[i];
+                double ex = Math.exp(-t * invTau);
+                values[i] += amp * ex;
+                jacobian[offset] = ex;
+                jacobian[offset + 1] = lifetimeScale * ex * t;
+            }
+        }
+        if (background) {
+            for (int i = 0, offset = numCoef - 1; i < numPoints; i++, offset += numCoef) {
+                jacobian[offset] = 1.0;
+            }
+        }
+    }
+
+    @Override
+    public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        for (int k = 0; k < 2 * numComponents; k += 2) {
+            double amp = coef[k], invTau = 1.0 / coef[k + 1];
+            for (int i = 0; i < numPoints; i++) {
+                values[i] += amp * Math.exp(-points[i] * invTau);
+            }
+        }
+    }
+}
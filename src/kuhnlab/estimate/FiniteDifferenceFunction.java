@@ -0,0 +1,298 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Adapts a {@link ValueFunction} with no analytic derivatives into an
+ * {@link EstimateFunction}, estimating the derivatives by finite differences.
+ * <p>
+ * Forward differences cost one extra evaluation per coefficient and re-use
+ * the value at the unshifted coefficients; central differences cost two but
+ * are accurate to second order. The step for each coefficient is chosen
+ * automatically as {@code relativeStep * max(|a|, 1)}, rounded so that
+ * {@code a + h} is exactly representable. The default relative step is the
+ * square root (forward) or cube root (central) of the machine epsilon.
+ * <p>
+ * The estimator evaluates this function a block of points at a time through
+ * {@link #getEstimates}, which makes one pass over the block per Jacobian
+ * column instead of scattering {@code n+1} calls over every point. Columns
+ * can also be evaluated in parallel with {@link #setupParallel}.
+ *
+ * @author jrkuhn
+ */
+public class FiniteDifferenceFunction implements BlockEstimateFunction {
+    protected static final double EPSILON = Math.ulp(1.0);
+
+    protected final ValueFunction model;
+    protected final int numCoef;
+    protected final boolean central;
+    protected double relativeStep;
+    protected int parallelMinPoints = Integer.MAX_VALUE;
+    protected ForkJoinPool parallelPool = null;
+
+    /** Per-thread evaluation buffers, so one adapter can be shared. */
+    protected final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * Create an adapter using forward differences.
+     * @param model function to differentiate
+     */
+    public FiniteDifferenceFunction(ValueFunction model) {
+        this(model, false);
+    }
+
+    /**
+     * Create an adapter.
+     * @param model function to differentiate
+     * @param central {@code true} for central differences, {@code false} for
+     *          forward differences.
+     */
+    public FiniteDifferenceFunction(ValueFunction model, boolean central) {
+        this.model = model;
+        this.numCoef = model.getNumCoef();
+        this.central = central;
+        relativeStep = central ? Math.cbrt(EPSILON) : Math.sqrt(EPSILON);
+    }
+
+    /**
+     * Get the wrapped function.
+     * @return the value-only model
+     */
+    public ValueFunction getModel() {
+        return model;
+    }
+
+    /**
+     * Set the step used for each coefficient, relative to the size of the
+     * coefficient (or 1, whichever is larger).
+     * @param relativeStep relative step size.
+     */
+    public void setupStep(double relativeStep) {
+        if (!(relativeStep > 0)) {
+            throw new RuntimeException("Step size must be positive");
+        }
+        this.relativeStep = relativeStep;
+    }
+
+    /**
+     * Evaluate the Jacobian columns of a block in parallel. This pays off
+     * when the model is expensive and the estimator itself is running
+     * serially; it should not usually be combined with
+     * {@link LevenbergMarquardtEstimator#setupParallel}.
+     * @param minPoints smallest block to split across columns.
+     *          {@code Integer.MAX_VALUE} (the default) disables it.
+     */
+    public void setupParallel(int minPoints) {
+        if (minPoints < 1) {
+            throw new RuntimeException("Parallel block size must be positive");
+        }
+        parallelMinPoints = minPoints;
+    }
+
+    /**
+     * Set the pool used to evaluate columns in parallel.
+     * @param pool the pool, or {@code null} for the common pool.
+     */
+    public void setParallelPool(ForkJoinPool pool) {
+        parallelPool = pool;
+    }
+
+    public int getPointDimension() {
+        return model.getPointDimension();
+    }
+
+    public int getNumCoef() {
+        return numCoef;
+    }
+
+    public String getCoefName(int index) {
+        return model.getCoefName(index);
+    }
+
+    public double getValue(double[] point, double[] coef) {
+        return model.getValue(point, coef);
+    }
+
+    @Override
+    public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        model.getValues(points, numPoints, coef, values);
+    }
+
+    /**
+     * Finite differences are taken one coefficient at a time, so the
+     * Jacobian is filled column by column.
+     * @return {@link BlockEstimateFunction.Layout#COLUMN_MAJOR}
+     */
+    @Override
+    public Layout getJacobianLayout() {
+        return Layout.COLUMN_MAJOR;
+    }
+
+    public Estimate getEstimate(double[] point, double[] coef) {
+        Estimate result = new Estimate(numCoef);
+        getEstimate(point, coef, result);
+        return result;
+    }
+
+    @Override
+    public void getEstimate(double[] point, double[] coef, Estimate result) {
+        double[] shifted = workspaces.get().shifted;
+        System.arraycopy(coef, 0, shifted, 0, numCoef);
+        double base = model.getValue(point, coef);
+        result.estimate = base;
+        boolean[] needed = result.needed;
+        for (int j = 0; j < numCoef; j++) {
+            if (needed != null && !needed[j]) {
+                // held fixed: skip the extra evaluations
+                result.derivatives[j] = 0;
+                continue;
+            }
+            double a = coef[j];
+            double h = step(a);
+            shifted[j] = a + h;
+            double plus = model.getValue(point, shifted);
+            if (central) {
+                shifted[j] = a - h;
+                double minus = model.getValue(point, shifted);
+                result.derivatives[j] = (plus - minus) / (2 * h);
+            } else {
+                result.derivatives[j] = (plus - base) / h;
+            }
+            shifted[j] = a;
+        }
+    }
+
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian) {
+        getEstimates(points, numPoints, coef, values, jacobian, null);
+    }
+
+    /**
+     * Columns whose derivatives are not needed are skipped entirely, saving
+     * one (forward) or two (central) passes over the block each.
+     */
+    @Override
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian, boolean[] needed) {
+        Workspace ws = workspaces.get();
+        ws.ensureCapacity(numPoints);
+        model.getValues(points, numPoints, coef, values);
+        for (int j = 0; j < numCoef; j++) {
+            ColumnTask task = ws.columns[j];
+            task.skip = (needed != null && !needed[j]);
+            task.points = points;
+            task.numPoints = numPoints;
+            task.coef = coef;
+            task.values = values;
+            task.jacobian = jacobian;
+        }
+        if (numPoints < parallelMinPoints || numCoef < 2) {
+            for (int j = 0; j < numCoef; j++) {
+                ws.columns[j].compute();
+            }
+            return;
+        }
+        for (int j = 0; j < numCoef; j++) {
+            ws.columns[j].reinitialize();
+        }
+        ws.root.reinitialize();
+        ForkJoinPool pool = (parallelPool != null) ? parallelPool : ForkJoinPool.commonPool();
+        pool.invoke(ws.root);
+    }
+
+    /**
+     * Step for a coefficient, rounded so that {@code a + h - a == h}.
+     */
+    protected double step(double a) {
+        double h = relativeStep * Math.max(Math.abs(a), 1.0);
+        double shifted = a + h;
+        return shifted - a;
+    }
+
+    /**
+     * Evaluation buffers for one thread.
+     */
+    protected class Workspace {
+        final double[] shifted = new double[numCoef];
+        final ColumnTask[] columns = new ColumnTask[numCoef];
+        final RecursiveAction root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(columns);
+            }
+        };
+        int capacity = 0;
+
+        Workspace() {
+            for (int j = 0; j < numCoef; j++) {
+                columns[j] = new ColumnTask(j);
+            }
+        }
+
+        void ensureCapacity(int numPoints) {
+            if (numPoints <= capacity) {
+                return;
+            }
+            capacity = numPoints;
+            for (int j = 0; j < numCoef; j++) {
+                columns[j].plus = new double[numPoints];
+                columns[j].minus = central ? new double[numPoints] : null;
+            }
+        }
+    }
+
+    /**
+     * Fills one column of the Jacobian of a block.
+     */
+    protected class ColumnTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int column;
+        final double[] shifted = new double[numCoef];
+        double[] plus, minus;
+        double[] points, coef, values, jacobian;
+        int numPoints;
+        boolean skip;
+
+        ColumnTask(int column) {
+            this.column = column;
+        }
+
+        @Override
+        protected void compute() {
+            if (skip) {
+                return;
+            }
+            System.arraycopy(coef, 0, shifted, 0, numCoef);
+            double a = coef[column];
+            double h = step(a);
+            int offset = column * numPoints;
+            shifted[column] = a + h;
+            model.getValues(points, numPoints, shifted, plus);
+            if (central) {
+                shifted[column] = a - h;
+                model.getValues(points, numPoints, shifted, minus);
+                double scale = 1.0 / (2 * h);
+                for (int i = 0; i < numPoints; i++) {
+                    jacobian[offset + i] = (plus[i] - minus[i]) * scale;
+                }
+            } else {
+                double scale = 1.0 / h;
+                for (int i = 0; i < numPoints; i++) {
+                    jacobian[offset + i] = (plus[i] - values[i]) * scale;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * Receives progress reports from a {@link LevenbergMarquardtEstimator}.
+ * Attach one with {@link LevenbergMarquardtEstimator#addFitListener}. When
+ * no listener is attached the estimator skips the reports, and its timers,
+ * entirely.
+ * <p>
+ * Listeners are called on the thread running the fit. A listener shared by
+ * several estimators (for example through a {@link BatchEstimator} template)
+ * must be thread-safe.
+ *
+ * @author jrkuhn
+ */
+public interface FitListener {
+    /**
+     * Summary of one iteration. The estimator re-uses a single instance, so
+     * copy anything that must outlive the callback.
+     */
+    public static class Iteration {
+        /** Iteration number, starting from 1. */
+        public int iteration;
+        /**
+         * Consecutive iterations that changed Chi-Squared by less than the
+         * stop condition.
+         */
+        public int extraIterations;
+        /** Chi-Squared after the iteration. */
+        public double chiSquared;
+        /** Damping used for the step. */
+        public double lambda;
+        /** Was the trial step accepted? */
+        public boolean accepted;
+        /** Euclidean length of the trial step. */
+        public double stepNorm;
+        /** Coefficients after the iteration. Do not modify. */
+        public double[] coef;
+    }
+
+    /**
+     * Called once the initial Chi-Squared has been computed.
+     * @param estimator the estimator running the fit
+     * @param coef      the starting coefficients. Do not modify.
+     * @param chiSquared Chi-Squared of the starting coefficients
+     */
+    public default void fitStarted(LevenbergMarquardtEstimator estimator, double[] coef, double chiSquared) {
+    }
+
+    /**
+     * Called after every iteration, whether or not its step was accepted.
+     * @param estimator the estimator running the fit
+     * @param info      summary of the iteration
+     */
+    public default void iteration(LevenbergMarquardtEstimator estimator, Iteration info) {
+    }
+
+    /**
+     * Called when a fit has finished. The {@code estimated...} results and
+     * the counters and timers of the estimator describe the finished fit.
+     * @param estimator the estimator that ran the fit
+     */
+    public default void fitFinished(LevenbergMarquardtEstimator estimator) {
+    }
+}
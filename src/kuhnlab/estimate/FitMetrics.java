@@ -0,0 +1,145 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates counters and timers over many fits. Attach one instance to
+ * every estimator of interest, or to the template of a
+ * {@link BatchEstimator} so that all of its workers share it. The counters
+ * are {@link LongAdder}s, so concurrent fits do not contend on updates.
+ * <p>
+ * Call {@link #register} to publish the totals through JMX.
+ *
+ * @author jrkuhn
+ */
+public class FitMetrics implements FitListener, FitMetricsMBean {
+    protected final LongAdder fits = new LongAdder();
+    protected final LongAdder iterations = new LongAdder();
+    protected final LongAdder acceptedSteps = new LongAdder();
+    protected final LongAdder rejectedSteps = new LongAdder();
+    protected final LongAdder valueEvaluations = new LongAdder();
+    protected final LongAdder jacobianEvaluations = new LongAdder();
+    protected final LongAdder linearSolves = new LongAdder();
+    protected final LongAdder alphaBetaNanos = new LongAdder();
+    protected final LongAdder chiSquaredNanos = new LongAdder();
+    protected final LongAdder solveNanos = new LongAdder();
+
+    @Override
+    public void iteration(LevenbergMarquardtEstimator estimator, Iteration info) {
+        if (info.accepted) {
+            acceptedSteps.increment();
+        } else {
+            rejectedSteps.increment();
+        }
+    }
+
+    @Override
+    public void fitFinished(LevenbergMarquardtEstimator estimator) {
+        fits.increment();
+        iterations.add(estimator.estimatedIterations());
+        valueEvaluations.add(estimator.getValueEvaluations());
+        jacobianEvaluations.add(estimator.getJacobianEvaluations());
+        linearSolves.add(estimator.getLinearSolves());
+        alphaBetaNanos.add(estimator.getAlphaBetaNanos());
+        chiSquaredNanos.add(estimator.getChiSquaredNanos());
+        solveNanos.add(estimator.getSolveNanos());
+    }
+
+    /**
+     * Register with the platform MBean server.
+     * @param name object name, for example
+     *          {@code "kuhnlab.estimate:type=FitMetrics,name=spots"}
+     * @return the object name registered
+     * @throws java.lang.RuntimeException if the name is invalid or already
+     *          registered
+     */
+    public ObjectName register(String name) throws RuntimeException {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException ex) {
+            throw new RuntimeException("Cannot register fit metrics as " + name, ex);
+        }
+    }
+
+    /**
+     * Remove a registration made by {@link #register}.
+     * @param objectName the name returned by {@link #register}
+     */
+    public void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            throw new RuntimeException("Cannot unregister fit metrics " + objectName, ex);
+        }
+    }
+
+    public long getFits() {
+        return fits.sum();
+    }
+
+    public long getIterations() {
+        return iterations.sum();
+    }
+
+    public long getAcceptedSteps() {
+        return acceptedSteps.sum();
+    }
+
+    public long getRejectedSteps() {
+        return rejectedSteps.sum();
+    }
+
+    public long getValueEvaluations() {
+        return valueEvaluations.sum();
+    }
+
+    public long getJacobianEvaluations() {
+        return jacobianEvaluations.sum();
+    }
+
+    public long getLinearSolves() {
+        return linearSolves.sum();
+    }
+
+    public long getAlphaBetaNanos() {
+        return alphaBetaNanos.sum();
+    }
+
+    public long getChiSquaredNanos() {
+        return chiSquaredNanos.sum();
+    }
+
+    public long getSolveNanos() {
+        return solveNanos.sum();
+    }
+
+    public double getMeanIterationsPerFit() {
+        long n = fits.sum();
+        return (n == 0) ? 0 : (double) iterations.sum() / n;
+    }
+
+    public void reset() {
+        fits.reset();
+        iterations.reset();
+        acceptedSteps.reset();
+        rejectedSteps.reset();
+        valueEvaluations.reset();
+        jacobianEvaluations.reset();
+        linearSolves.reset();
+        alphaBetaNanos.reset();
+        chiSquaredNanos.reset();
+        solveNanos.reset();
+    }
+}
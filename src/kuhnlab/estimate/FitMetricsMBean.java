@@ -0,0 +1,37 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * JMX management interface of {@link FitMetrics}.
+ *
+ * @author jrkuhn
+ */
+public interface FitMetricsMBean {
+    public long getFits();
+
+    public long getIterations();
+
+    public long getAcceptedSteps();
+
+    public long getRejectedSteps();
+
+    public long getValueEvaluations();
+
+    public long getJacobianEvaluations();
+
+    public long getLinearSolves();
+
+    public long getAlphaBetaNanos();
+
+    public long getChiSquaredNanos();
+
+    public long getSolveNanos();
+
+    public double getMeanIterationsPerFit();
+
+    public void reset();
+}
@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * The outcome of an asynchronous fit started with
+ * {@link LevenbergMarquardtEstimator#estimateAsync}. A fit stopped by its
+ * deadline or by {@link LevenbergMarquardtEstimator#cancel} still has a
+ * result: the best coefficients accepted so far, with the termination
+ * reason saying why it stopped early.
+ *
+ * @author jrkuhn
+ */
+public class FitResult {
+    /** The estimated coefficients, or the best so far if stopped early. */
+    public final double[] coef;
+    /** Chi-Squared of {@link #coef}. */
+    public final double chiSquared;
+    /** Number of iterations used. */
+    public final int iterations;
+    /** Damping at the end of the fit. */
+    public final double lambda;
+    /** Why the fit stopped. */
+    public final LevenbergMarquardtEstimator.TerminationReason termination;
+
+    public FitResult(double[] coef, double chiSquared, int iterations, double lambda,
+            LevenbergMarquardtEstimator.TerminationReason termination) {
+        this.coef = coef;
+        this.chiSquared = chiSquared;
+        this.iterations = iterations;
+        this.lambda = lambda;
+        this.termination = termination;
+    }
+
+    /**
+     * Did the fit stop before reaching a stop condition or the iteration
+     * limit?
+     * @return {@code true} if the fit ran out of time or was cancelled.
+     */
+    public boolean isInterrupted() {
+        return termination == LevenbergMarquardtEstimator.TerminationReason.DEADLINE
+                || termination == LevenbergMarquardtEstimator.TerminationReason.CANCELLED;
+    }
+
+    @Override
+    public String toString() {
+        String str = "chiSquared = " + chiSquared + ", iterations = " + iterations +
+                ", termination = " + termination + "\n";
+        for (int i = 0; i < coef.length; i++) {
+            str += "coef[" + i + "] = " + coef[i] + "\n";
+        }
+        return str;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+
+/**
+ * Packed single-precision storage for the data points of an estimate. The
+ * layout is the same as {@link PackedData}, but coordinates, values and
+ * weights are kept as {@code float}, halving the memory and the bandwidth
+ * of each pass over the data. Points are widened to {@code double} as they
+ * are read, so all sums are still formed in double precision.
+ * <p>
+ * A float holds about 7 significant digits, which is plenty for
+ * measurements from 16-bit detectors and their pixel coordinates. Each
+ * stored number is rounded to float once, when it is added. For large
+ * datasets, pair this with
+ * {@link LevenbergMarquardtEstimator#setupCompensatedSummation} so the sums
+ * themselves lose no accuracy.
+ *
+ * @author jrkuhn
+ */
+public class FloatData implements DataSource {
+    protected int dimension;
+    protected int size;
+    /** Point coordinates, {@code dimension} values per point. */
+    protected float[] points;
+    /** Measured values at each point. */
+    protected float[] values;
+    /** Estimated standard deviation of each value. */
+    protected float[] weights;
+
+    /**
+     * Create an empty data store.
+     * @param dimension number of coordinates per point.
+     */
+    public FloatData(int dimension) {
+        this(dimension, 16);
+    }
+
+    /**
+     * Create an empty data store with room for some points.
+     * @param dimension number of coordinates per point.
+     * @param initialCapacity number of points to allocate space for.
+     */
+    public FloatData(int dimension, int initialCapacity) {
+        if (dimension < 1) {
+            throw new RuntimeException("Point dimension must be positive");
+        }
+        this.dimension = dimension;
+        this.size = 0;
+        initialCapacity = Math.max(initialCapacity, 1);
+        points = new float[initialCapacity * dimension];
+        values = new float[initialCapacity];
+        weights = new float[initialCapacity];
+    }
+
+    /**
+     * Get number of coordinates in each point.
+     * @return dimension of a point
+     */
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the number of points stored.
+     * @return number of data points
+     */
+    public long size() {
+        return size;
+    }
+
+    public void read(long from, int count, double[] xs, double[] ys, double[] sigmas) {
+        int start = (int) from;
+        int p = start * dimension;
+        int numCoords = count * dimension;
+        for (int i = 0; i < numCoords; i++) {
+            xs[i] = points[p + i];
+        }
+        for (int i = 0; i < count; i++) {
+            ys[i] = values[start + i];
+            sigmas[i] = weights[start + i];
+        }
+    }
+
+    /**
+     * Remove all points. The allocated storage is kept for re-use.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Make sure there is room for at least {@code capacity} points.
+     * @param capacity total number of points to hold.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= values.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, values.length + (values.length >> 1));
+        points = Arrays.copyOf(points, newCapacity * dimension);
+        values = Arrays.copyOf(values, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+    }
+
+    /**
+     * Append a single point, rounding it to single precision.
+     * @param point coordinates of the point ({@link #getPointDimension} long)
+     * @param value value at this point
+     * @param weight estimated standard deviation of the value
+     */
+    public void add(double[] point, double value, double weight) {
+        ensureCapacity(size + 1);
+        int p = size * dimension;
+        for (int d = 0; d < dimension; d++) {
+            points[p + d] = (float) point[d];
+        }
+        values[size] = (float) value;
+        weights[size] = (float) weight;
+        size++;
+    }
+
+    /**
+     * Append a range of points from packed double arrays, rounding them to
+     * single precision.
+     * @param xs packed coordinates, {@link #getPointDimension} values per point
+     * @param ys values at each point
+     * @param sigmas estimated standard deviation of each value
+     * @param from index of the first point to copy
+     * @param count number of points to copy
+     */
+    public void addAll(double[] xs, double[] ys, double[] sigmas, int from, int count) {
+        ensureCapacity(size + count);
+        int p = size * dimension, src = from * dimension;
+        for (int i = 0; i < count * dimension; i++) {
+            points[p + i] = (float) xs[src + i];
+        }
+        for (int i = 0; i < count; i++) {
+            values[size + i] = (float) ys[from + i];
+            weights[size + i] = (float) sigmas[from + i];
+        }
+        size += count;
+    }
+
+    /**
+     * Append a range of points from packed float arrays.
+     * @param xs packed coordinates, {@link #getPointDimension} values per point
+     * @param ys values at each point
+     * @param sigmas estimated standard deviation of each value
+     * @param from index of the first point to copy
+     * @param count number of points to copy
+     */
+    public void addAll(float[] xs, float[] ys, float[] sigmas, int from, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(xs, from * dimension, points, size * dimension, count * dimension);
+        System.arraycopy(ys, from, values, size, count);
+        System.arraycopy(sigmas, from, weights, size, count);
+        size += count;
+    }
+
+    /**
+     * Append every point of another data source, rounding them to single
+     * precision.
+     * @param source points to copy
+     */
+    public void addAll(DataSource source) {
+        if (source.getPointDimension() != dimension) {
+            throw new RuntimeException("Data source dimension " + source.getPointDimension() +
+                    " does not match dimension " + dimension);
+        }
+        long total = source.size();
+        if (size + total > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many points for in-memory storage");
+        }
+        ensureCapacity(size + (int) total);
+        int block = AlphaBetaChi.BLOCK_SIZE;
+        double[] xs = new double[block * dimension];
+        double[] ys = new double[block];
+        double[] sigmas = new double[block];
+        for (long start = 0; start < total; start += block) {
+            int count = (int) Math.min(block, total - start);
+            source.read(start, count, xs, ys, sigmas);
+            addAll(xs, ys, sigmas, 0, count);
+        }
+    }
+
+    /**
+     * Copy the coordinates of a point into a buffer.
+     * @param index index of the point
+     * @param point buffer to fill, at least {@link #getPointDimension} long
+     */
+    public void getPoint(int index, double[] point) {
+        int p = index * dimension;
+        for (int d = 0; d < dimension; d++) {
+            point[d] = points[p + d];
+        }
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public double getWeight(int index) {
+        return weights[index];
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A two-dimensional elliptical Gaussian spot on a constant background, with
+ * its axes along x and y:
+ * <pre>
+ *   f(x,y) = A exp(-(x - x0)^2 / (2 sx^2) - (y - y0)^2 / (2 sy^2)) + B
+ * </pre>
+ * Coefficients are, in order, amplitude {@code A}, center {@code x0} and
+ * {@code y0}, standard deviations {@code sx} and {@code sy}, and background
+ * {@code B}. Points are {@code (x, y)} pairs. One exponential per point is
+ * shared by the value and all derivatives.
+ * <p>
+ * The spot is separable, {@code exp(-u^2/2) exp(-v^2/2)}, so on points from
+ * a {@link GridData} the x factor is computed once per column and the y
+ * factor once per row, and each point costs a multiply instead of an
+ * exponential.
+ *
+ * @author jrkuhn
+ */
+public class GaussianSpot2D implements GridEstimateFunction {
+    public static final int AMPLITUDE = 0, X0 = 1, Y0 = 2, SIGMA_X = 3, SIGMA_Y = 4, BACKGROUND = 5;
+    protected static final String[] NAMES = {"amplitude", "x0", "y0", "sigmaX", "sigmaY", "background"};
+
+    public int getPointDimension() {
+        return 2;
+    }
+
+    public int getNumCoef() {
+        return 6;
+    }
+
+    public String getCoefName(int index) {
+        return NAMES[index];
+    }
+
+    public Estimate getEstimate(double[] point, double[] coef) {
+        Estimate result = new Estimate(6);
+        getEstimate(point, coef, result);
+        return result;
+    }
+
+    @Override
+    public void getEstimate(double[] point, double[] coef, Estimate result) {
+        double amp = coef[AMPLITUDE];
+        double invSx = 1.0 / coef[SIGMA_X], invSy = 1.0 / coef[SIGMA_Y];
+        double u = (point[0] - coef[X0]) * invSx;
+        double v = (point[1] - coef[Y0]) * invSy;
+        double ex = Math.exp(-0.5 * (u * u + v * v));
+        double term = amp * ex;
+        double[] dyda = result.derivatives;
+        dyda[AMPLITUDE] = ex;
+        dyda[X0] = term * u * invSx;
+        dyda[Y0] = term * v * invSy;
+        dyda[SIGMA_X] = term * u * u * invSx;
+        dyda[SIGMA_Y] = term * v * v * invSy;
+        dyda[BACKGROUND] = 1.0;
+        result.estimate = term + coef[BACKGROUND];
+    }
+
+    @Override
+    public double getValue(double[] point, double[] coef) {
+        double u = (point[0] - coef[X0]) / coef[SIGMA_X];
+        double v = (point[1] - coef[Y0]) / coef[SIGMA_Y];
+        return coef[AMPLITUDE] * Math.exp(-0.5 * (u * u + v * v)) + coef[BACKGROUND];
+    }
+
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian) {
+        double amp = coef[AMPLITUDE], x0 = coef[X0], y0 = coef[Y0], bg = coef[BACKGROUND];
+        double invSx = 1.0 / coef[SIGMA_X], invSy = 1.0 / coef[SIGMA_Y];
+        for (int i = 0, p = 0, offset = 0; i < numPoints; i++, p += 2, offset += 6) {
+            double u = (points[p] - x0) * invSx;
+            double v = (points[p + 1] - y0) * invSy;
+            double ex = Math.exp(-0.5 * (u * u + v * v));
+            double term = amp * ex;
+            double du = term * u * invSx, dv = term * v * invSy;
+            values[i] = term + bg;
+            jacobian[offset + AMPLITUDE] = ex;
+            jacobian[offset + X0] = du;
+            jacobian[offset + Y0] = dv;
+            jacobian[offset + SIGMA_X] = du * u;
+            jacobian[offset + SIGMA_Y] = dv * v;
+            jacobian[offset + BACKGROUND] = 1.0;
+        }
+    }
+
+    @Override
+    public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        double amp = coef[AMPLITUDE], x0 = coef[X0], y0 = coef[Y0], bg = coef[BACKGROUND];
+        double invSx = 1.0 / coef[SIGMA_X], invSy = 1.0 / coef[SIGMA_Y];
+        for (int i = 0, p = 0; i < numPoints; i++, p += 2) {
+            double u = (points[p] - x0) * invSx;
+            double v = (points[p + 1] - y0) * invSy;
+            values[i] = amp * Math.exp(-0.5 * (u * u + v * v)) + bg;
+        }
+    }
+
+    public void getEstimates(GridRows rows, double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian, boolean[] needed) {
+        int first = rows.minColumn, numColumns = rows.maxColumn - first + 1;
+        if (numColumns > numPoints) {
+            // too few points per column to be worth it
+            getEstimates(points, numPoints, coef, values, jacobian);
+            return;
+        }
+        double amp = coef[AMPLITUDE], y0 = coef[Y0], bg = coef[BACKGROUND];
+        double invSx = 1.0 / coef[SIGMA_X], invSy = 1.0 / coef[SIGMA_Y];
+        double[] columns = columnTerms(rows, first, numColumns, coef[X0], invSx);
+        for (int r = 0; r < rows.numRows; r++) {
+            double v = (rows.rowY[r] - y0) * invSy;
+            double gy = Math.exp(-0.5 * v * v);
+            int c = 2 * (rows.rowColumn[r] - first);
+            for (int i = rows.rowStart[r], end = i + rows.rowLength[r], offset = i * 6; i < end;
+                    i++, c += 2, offset += 6) {
+                double u = columns[c];
+                double ex = gy * columns[c + 1];
+                double term = amp * ex;
+                double du = term * u * invSx, dv = term * v * invSy;
+                values[i] = term + bg;
+                jacobian[offset + AMPLITUDE] = ex;
+                jacobian[offset + X0] = du;
+                jacobian[offset + Y0] = dv;
+                jacobian[offset + SIGMA_X] = du * u;
+                jacobian[offset + SIGMA_Y] = dv * v;
+                jacobian[offset + BACKGROUND] = 1.0;
+            }
+        }
+    }
+
+    public void getValues(GridRows rows, double[] points, int numPoints, double[] coef, double[] values) {
+        int first = rows.minColumn, numColumns = rows.maxColumn - first + 1;
+        if (numColumns > numPoints) {
+            getValues(points, numPoints, coef, values);
+            return;
+        }
+        double amp = coef[AMPLITUDE], y0 = coef[Y0], bg = coef[BACKGROUND];
+        double invSy = 1.0 / coef[SIGMA_Y];
+        double[] columns = columnTerms(rows, first, numColumns, coef[X0], 1.0 / coef[SIGMA_X]);
+        for (int r = 0; r < rows.numRows; r++) {
+            double v = (rows.rowY[r] - y0) * invSy;
+            double ampGy = amp * Math.exp(-0.5 * v * v);
+            int c = 2 * (rows.rowColumn[r] - first) + 1;
+            for (int i = rows.rowStart[r], end = i + rows.rowLength[r]; i < end; i++, c += 2) {
+                values[i] = ampGy * columns[c] + bg;
+            }
+        }
+    }
+
+    /**
+     * Compute {@code u} and {@code exp(-u^2/2)} for a range of grid
+     * columns, packed in pairs in the rows' scratch buffer.
+     */
+    protected static double[] columnTerms(GridRows rows, int first, int numColumns, double x0, double invSx) {
+        double[] columns = rows.getScratch(2 * numColumns);
+        for (int c = 0; c < numColumns; c++) {
+            double u = (rows.firstX + (first + c) * rows.spacingX - x0) * invSx;
+            columns[2 * c] = u;
+            columns[2 * c + 1] = Math.exp(-0.5 * u * u);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A sum of one-dimensional Gaussians, optionally on a constant background:
+ * <pre>
+ *   f(x) = sum_k A_k exp(-((x - c_k) / w_k)^2) [+ B]
+ * </pre>
+ * The amplitude, center and width of each Gaussian are stored in consecutive
+ * coefficients, followed by the background if there is one. This is the same
+ * model as Numerical Recipes' {@code fgauss}, but each exponential is shared
+ * between the value and all three derivatives, and nothing is allocated
+ * per point.
+ *
+ * @author jrkuhn
+ */
+public class GaussianSum implements BlockEstimateFunction {
+    protected final int numComponents;
+    protected final boolean background;
+    protected final int numCoef;
+
+    /**
+     * Create a sum of Gaussians with no background.
+     * @param numComponents number of Gaussians
+     */
+    public GaussianSum(int numComponents) {
+        this(numComponents, false);
+    }
+
+    /**
+     * Create a sum of Gaussians.
+     * @param numComponents number of Gaussians
+     * @param background {@code true} to add a constant background coefficient
+     */
+    public GaussianSum(int numComponents, boolean background) {
+        if (numComponents < 1) {
+            throw new RuntimeException("Need at least one component");
+        }
+        this.numComponents = numComponents;
+        this.background = background;
+        numCoef = 3 * numComponents + (background ? 1 : 0);
+    }
+
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getPointDimension() {
+        return 1;
+    }
+
+    public int getNumCoef() {
+        return numCoef;
+    }
+
+    public String getCoefName(int index) {
+        if (background && index == numCoef - 1) {
+            return "background";
+        }
+        int k = index / 3 + 1;
+        switch (index % 3) {
+            case 0: return "amplitude" + k;
+            case 1: return "center" + k;
+            default: return "width" + k;
+        }
+    }
+
+    public Estimate getEstimate(double[] point, double[] coef) {
+        Estimate result = new Estimate(numCoef);
+        getEstimate(point, coef, result);
+        return result;
+    }
+
+    @Override
+    public void getEstimate(double[] point, double[] coef, Estimate result) {
+        double x = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        double[] dyda = result.derivatives;
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double invWidth = 1.0 / coef[k + 2];
+            double arg = (x - coef[k + 1]) * invWidth;
+            double ex = Math.exp(-arg * arg);
+            double fac = coef[k] * ex * 2.0 * arg * invWidth;
+            y += coef[k] * ex;
+            dyda[k] = ex;
+            dyda[k + 1] = fac;
+            dyda[k + 2] = fac * arg;
+        }
+        if (background) {
+            dyda[numCoef - 1] = 1.0;
+        }
+        result.estimate = y;
+    }
+
+    @Override
+    public double getValue(double[] point, double[] coef) {
+        double x = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double arg = (x - coef[k + 1]) / coef[k + 2];
+            y += coef[k] * Math.exp(-arg * arg);
+        }
+        return y;
+    }
+
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        // one component at a time, so its coefficients stay in registers
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double amp = coef[k], center = coef[k + 1], invWidth = 1.0 / coef[k + 2];
+            double ampScale = amp * 2.0 * invWidth;
+            for (int i = 0, offset = k; i < numPoints; i++, offset += numCoef) {
+                double arg = (points[i] - center) * invWidth;
+                double ex = Math.exp(-arg * arg);
+                double fac = ampScale * ex * arg;
+                values[i] += amp * ex;
+                jacobian[offset] = ex;
+                jacobian[offset + 1] = fac;
+                jacobian[offset + 2] = fac * arg;
+            }
+        }
+        if (background) {
+            for (int i = 0, offset = numCoef - 1; i < numPoints; i++, offset += numCoef) {
+                jacobian[offset] = 1.0;
+            }
+        }
+    }
+
+    @Override
+    public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double amp = coef[k], center = coef[k + 1], invWidth = 1.0 / coef[k + 2];
+            for (int i = 0; i < numPoints; i++) {
+                double arg = (points[i] - center) * invWidth;
+                values[i] += amp * Math.exp(-arg * arg);
+            }
+        }
+    }
+}
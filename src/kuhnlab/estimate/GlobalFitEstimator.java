@@ -0,0 +1,768 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fits many datasets at once with a model whose first coefficients are
+ * shared by every dataset (global) and whose remaining coefficients belong
+ * to one dataset each (local). For example, many decay curves with a common
+ * lifetime but their own amplitude and offset.
+ * <p>
+ * The {@link EstimateFunction} describes one dataset: its coefficients are
+ * the {@code numGlobal} global coefficients followed by the local ones.
+ * Flattening all of the datasets into one function would make alpha a dense
+ * matrix of size {@code G + K*L}. Instead alpha is kept in its block-arrow
+ * form: a {@code G x G} global block, and for each dataset a {@code G x L}
+ * coupling block and an {@code L x L} local block. Each Levenberg-Marquardt
+ * step eliminates the local blocks with a Schur complement,
+ * <pre>
+ *   S = sum_k (U_k - W_k V_k^-1 W_k')
+ * </pre>
+ * solves the small {@code G x G} system for the global step, and recovers
+ * each local step by back substitution. The cost of building and solving the
+ * system is linear in the number of datasets, and each dataset's blocks are
+ * accumulated and eliminated independently, in parallel if enabled with
+ * {@link #setupParallel}. Contributions are summed in dataset order, so
+ * results do not depend on the number of threads.
+ * <p>
+ * Steps are accepted, lambda is updated and the fit is stopped by the same
+ * rules as {@link LevenbergMarquardtEstimator}, so a global fit converges
+ * like the equivalent flat fit. The lambda, damping, maximum iteration,
+ * delta and relative Chi-Squared, gradient and step size settings have the
+ * same meaning as there; with {@link LevenbergMarquardtEstimator.DampingScale#MARQUARDT
+ * Marquardt} damping the diagonals of the global and local blocks are
+ * multiplied by {@code 1 + lambda}. Alpha and beta are only recomputed after
+ * an accepted step, as with a lazy Jacobian. Geodesic acceleration, fixed
+ * coefficients and bounds, fit listeners and metrics, compensated summation,
+ * the solution cache, and cancellation and deadlines are not supported.
+ *
+ * @author jrkuhn
+ */
+public class GlobalFitEstimator {
+    protected final EstimateFunction function;
+    protected final int numGlobal;
+    protected final int numLocal;
+    protected final List<Dataset> datasets = new ArrayList<Dataset>();
+
+    protected double lambdaStart = 0.001;
+    protected double lambdaScalePerStep = 0.1;
+    protected double deltaChiSquaredStop = 0.1;
+    protected int maxTotalIterations = 1000;
+    protected int maxExtraIterations = 3;
+    protected double relativeChiSquaredStop = 0;
+    protected double gradientStop = 0;
+    protected double stepSizeStop = 0;
+    protected LevenbergMarquardtEstimator.LambdaUpdate lambdaUpdate =
+            LevenbergMarquardtEstimator.LambdaUpdate.FIXED_FACTOR;
+    protected LevenbergMarquardtEstimator.DampingScale dampingScale =
+            LevenbergMarquardtEstimator.DampingScale.MARQUARDT;
+
+    protected int parallelThreshold = Integer.MAX_VALUE;
+    protected ForkJoinPool parallelPool = null;
+
+    /** Coefficients of the current and trial steps. */
+    protected double[] globalCoef, trialGlobal;
+    /** Global block of alpha and global part of beta, summed over datasets. */
+    protected double[] globalAlpha, globalBeta;
+    /** Schur complement and its right hand side. */
+    protected double[] schur, schurRhs, globalDelta;
+    protected SymmetricSolver schurSolver;
+
+    protected double finalChiSquared = Double.NaN;
+    protected int finalIterations = 0;
+    protected LevenbergMarquardtEstimator.TerminationReason finalTermination;
+    protected double[] finalGlobalCovariance;
+
+    /**
+     * Create an estimator for a global fit.
+     * @param function model of a single dataset. Its first {@code numGlobal}
+     *          coefficients are shared by all datasets.
+     * @param numGlobal number of global coefficients.
+     */
+    public GlobalFitEstimator(EstimateFunction function, int numGlobal) {
+        if (numGlobal < 0 || numGlobal > function.getNumCoef()) {
+            throw new RuntimeException("Number of global coefficients must be between 0 and "
+                    + function.getNumCoef());
+        }
+        this.function = function;
+        this.numGlobal = numGlobal;
+        this.numLocal = function.getNumCoef() - numGlobal;
+    }
+
+    public EstimateFunction getFunction() {
+        return function;
+    }
+
+    public int getNumGlobal() {
+        return numGlobal;
+    }
+
+    public int getNumLocal() {
+        return numLocal;
+    }
+
+    /**
+     * Add a dataset.
+     * @param data the data points of the dataset
+     * @return index of the dataset
+     */
+    public int addDataset(DataSource data) {
+        if (data.getPointDimension() != function.getPointDimension()) {
+            throw new RuntimeException("Data point dimension " + data.getPointDimension() +
+                    " does not match function dimension " + function.getPointDimension());
+        }
+        datasets.add(new Dataset(data));
+        return datasets.size() - 1;
+    }
+
+    /**
+     * Add a dataset from packed arrays. The arrays are copied.
+     * @param xs    packed point coordinates
+     * @param ys    value of the function at each point
+     * @param sigmas estimated standard deviation of each value
+     * @return index of the dataset
+     */
+    public int addDataset(double[] xs, double[] ys, double[] sigmas) {
+        int dim = function.getPointDimension();
+        if (xs.length != ys.length * dim || sigmas.length != ys.length) {
+            throw new RuntimeException("Coordinate, value, and sigma arrays do not match");
+        }
+        PackedData data = new PackedData(dim, ys.length);
+        data.addAll(xs, ys, sigmas, 0, ys.length);
+        return addDataset(data);
+    }
+
+    public int getNumDatasets() {
+        return datasets.size();
+    }
+
+    /**
+     * Remove all datasets.
+     */
+    public void clearDatasets() {
+        datasets.clear();
+        finalTermination = null;
+    }
+
+    public void setupLambda(double lambdaStart, double lambdaScalePerStep) {
+        this.lambdaStart = lambdaStart;
+        this.lambdaScalePerStep = lambdaScalePerStep;
+    }
+
+    public void setupDeltaChiSquaredStopCondition(double deltaChiSquared, int extraIterations) {
+        this.deltaChiSquaredStop = deltaChiSquared;
+        this.maxExtraIterations = extraIterations;
+    }
+
+    public void setupMaximumIterations(int maxIterations) {
+        this.maxTotalIterations = maxIterations;
+    }
+
+    /**
+     * Stop when an accepted step reduces the total Chi-Squared by less than
+     * {@code relativeChiSquared} times its new value.
+     * @param relativeChiSquared relative tolerance, or 0 to disable (the default).
+     */
+    public void setupRelativeChiSquaredStopCondition(double relativeChiSquared) {
+        this.relativeChiSquaredStop = relativeChiSquared;
+    }
+
+    /**
+     * Stop when every element of the gradient, over the global and all of
+     * the local coefficients, is smaller in magnitude than {@code gradient}.
+     * @param gradient gradient tolerance, or 0 to disable (the default).
+     */
+    public void setupGradientStopCondition(double gradient) {
+        this.gradientStop = gradient;
+    }
+
+    /**
+     * Stop when an accepted step changes every global and local coefficient
+     * by less than {@code stepSize * (|coef| + stepSize)}.
+     * @param stepSize relative step tolerance, or 0 to disable (the default).
+     */
+    public void setupStepSizeStopCondition(double stepSize) {
+        this.stepSizeStop = stepSize;
+    }
+
+    /**
+     * Choose how lambda is damped and updated.
+     * @param update how lambda changes after good and bad steps.
+     *          {@link LevenbergMarquardtEstimator.LambdaUpdate#FIXED_FACTOR} by default.
+     * @param scale which matrix lambda multiplies.
+     *          {@link LevenbergMarquardtEstimator.DampingScale#MARQUARDT} by default.
+     */
+    public void setupDamping(LevenbergMarquardtEstimator.LambdaUpdate update,
+            LevenbergMarquardtEstimator.DampingScale scale) {
+        this.lambdaUpdate = update;
+        this.dampingScale = scale;
+    }
+
+    /**
+     * Accumulate and eliminate datasets in parallel when there are at least
+     * {@code threshold} of them. In parallel mode the {@link EstimateFunction}
+     * is called from several threads at once and must be thread-safe.
+     * @param threshold minimum number of datasets to run in parallel.
+     *          Use {@link Integer#MAX_VALUE} to always run serially (the default).
+     */
+    public void setupParallel(int threshold) {
+        if (threshold < 1) {
+            throw new RuntimeException("Parallel threshold must be positive");
+        }
+        this.parallelThreshold = threshold;
+    }
+
+    /**
+     * Set the pool used for parallel work.
+     * @param pool the pool to use, or {@code null} for the common pool.
+     */
+    public void setParallelPool(ForkJoinPool pool) {
+        this.parallelPool = pool;
+    }
+
+    /**
+     * Fit the global and local coefficients of every dataset.
+     * @param globalGuess initial guess of the global coefficients.
+     * @param localGuesses initial guess of the local coefficients, either
+     *          {@link #getNumLocal} values shared by every dataset, or that
+     *          many values per dataset, packed in dataset order.
+     * @return the estimated global coefficients. Use {@link #estimatedLocals}
+     *          for the local ones.
+     * @throws java.lang.RuntimeException if the number of coefficients do
+     *      not match, a dataset has fewer points than local coefficients, or
+     *      a block of alpha is singular.
+     */
+    public double[] estimate(double[] globalGuess, double[] localGuesses) throws RuntimeException {
+        int numDatasets = datasets.size();
+        if (numDatasets == 0) {
+            throw new RuntimeException("There are no datasets to fit");
+        }
+        if (globalGuess.length != numGlobal) {
+            throw new RuntimeException("Expected " + numGlobal + " global coefficients");
+        }
+        boolean sharedGuess = localGuesses.length == numLocal;
+        if (!sharedGuess && localGuesses.length != numDatasets * numLocal) {
+            throw new RuntimeException("Expected " + numLocal + " or " + (numDatasets * numLocal) +
+                    " local coefficients");
+        }
+        long totalPoints = 0;
+        for (int k = 0; k < numDatasets; k++) {
+            Dataset set = datasets.get(k);
+            if (set.data.size() < numLocal) {
+                throw new RuntimeException("Dataset " + k + " has fewer data points than local coefficients");
+            }
+            totalPoints += set.data.size();
+            System.arraycopy(localGuesses, sharedGuess ? 0 : k * numLocal, set.local, 0, numLocal);
+        }
+        if (totalPoints < numGlobal + (long) numDatasets * numLocal) {
+            throw new RuntimeException("There are fewer data points than coefficients");
+        }
+
+        if (schurSolver == null) {
+            globalCoef = new double[numGlobal];
+            trialGlobal = new double[numGlobal];
+            globalAlpha = new double[numGlobal * numGlobal];
+            globalBeta = new double[numGlobal];
+            schur = new double[numGlobal * numGlobal];
+            schurRhs = new double[numGlobal];
+            globalDelta = new double[numGlobal];
+            schurSolver = new SymmetricSolver(numGlobal);
+        }
+        System.arraycopy(globalGuess, 0, globalCoef, 0, numGlobal);
+        finalGlobalCovariance = null;
+
+        double lambda = lambdaStart;
+        int iterations = 1;
+        LevenbergMarquardtEstimator.TerminationReason reason =
+                LevenbergMarquardtEstimator.TerminationReason.MAX_ITERATIONS;
+
+        double startChiSq = runPhase(Phase.ALPHA, 0);
+        if (dampingScale == LevenbergMarquardtEstimator.DampingScale.IDENTITY) {
+            // lambda is relative to the size of alpha
+            lambda *= maxAlphaDiagonal();
+        }
+        StepControl steps = new StepControl();
+        steps.setup(lambdaUpdate, lambdaScalePerStep, deltaChiSquaredStop, maxExtraIterations,
+                relativeChiSquaredStop);
+        steps.start(startChiSq, lambda);
+        if (gradientStop > 0 && maxGradient() <= gradientStop) {
+            reason = LevenbergMarquardtEstimator.TerminationReason.GRADIENT;
+        }
+        while (reason == LevenbergMarquardtEstimator.TerminationReason.MAX_ITERATIONS) {
+            lambda = steps.lambda;
+            // eliminate the local blocks and solve for the global step
+            runPhase(Phase.SCHUR, lambda);
+            sumSchur(lambda);
+            if (numGlobal > 0) {
+                if (!schurSolver.factor(schur)) {
+                    throw new RuntimeException("Matrix is singular.");
+                }
+                schurSolver.solve(schurRhs, globalDelta);
+            }
+            for (int g = 0; g < numGlobal; g++) {
+                trialGlobal[g] = globalCoef[g] + globalDelta[g];
+            }
+            // back substitute for each local step, and evaluate the trial
+            double trialChiSq = runPhase(Phase.TRIAL, lambda);
+            double predicted = predictedReduction(lambda);
+
+            boolean goodStep = steps.isGood(trialChiSq, true);
+            if (!goodStep) {
+                // --Bad step--
+                steps.reject();
+            } else {
+                // --Good step--
+                boolean relative = steps.accept(trialChiSq, predicted);
+                if (stepSizeStop > 0 && isSmallStep()) {
+                    reason = LevenbergMarquardtEstimator.TerminationReason.STEP_SIZE;
+                }
+                if (relative) {
+                    reason = LevenbergMarquardtEstimator.TerminationReason.RELATIVE_CHI_SQUARED;
+                }
+                System.arraycopy(trialGlobal, 0, globalCoef, 0, numGlobal);
+                for (Dataset set : datasets) {
+                    set.acceptTrial();
+                }
+                runPhase(Phase.ALPHA, 0);
+                if (gradientStop > 0 && maxGradient() <= gradientStop) {
+                    reason = LevenbergMarquardtEstimator.TerminationReason.GRADIENT;
+                }
+            }
+            // check to see if the chi-squared value has changed much
+            boolean converged = steps.endIteration(trialChiSq, goodStep, true);
+            iterations++;
+            if (converged) {
+                reason = LevenbergMarquardtEstimator.TerminationReason.DELTA_CHI_SQUARED;
+                break;
+            }
+            if (iterations >= maxTotalIterations) {
+                break;
+            }
+        }
+        finalTermination = reason;
+        finalChiSquared = steps.coefChiSq;
+        finalIterations = iterations - 1;
+        return Arrays.copyOf(globalCoef, numGlobal);
+    }
+
+    /**
+     * Get the estimated local coefficients of every dataset.
+     * @return {@link #getNumLocal} values per dataset, packed in dataset
+     *          order
+     */
+    public double[] estimatedLocals() {
+        double[] locals = new double[datasets.size() * numLocal];
+        for (int k = 0; k < datasets.size(); k++) {
+            System.arraycopy(datasets.get(k).local, 0, locals, k * numLocal, numLocal);
+        }
+        return locals;
+    }
+
+    /**
+     * Get the estimated local coefficients of one dataset.
+     * @param dataset index of the dataset
+     * @return the local coefficients
+     */
+    public double[] estimatedLocals(int dataset) {
+        return Arrays.copyOf(datasets.get(dataset).local, numLocal);
+    }
+
+    /**
+     * Get the total Chi-Squared of the last estimate over all datasets.
+     * @return Chi-Squared, or {@code NaN} if {@link #estimate} has not yet
+     *          been called.
+     */
+    public double estimatedChiSquared() {
+        return finalChiSquared;
+    }
+
+    /**
+     * Get the Chi-Squared of one dataset at the last estimate.
+     * @param dataset index of the dataset
+     * @return Chi-Squared of that dataset
+     */
+    public double estimatedChiSquared(int dataset) {
+        return datasets.get(dataset).sums.chiSq;
+    }
+
+    public int estimatedIterations() {
+        return finalIterations;
+    }
+
+    public LevenbergMarquardtEstimator.TerminationReason estimatedTerminationReason() {
+        return finalTermination;
+    }
+
+    /**
+     * Get the covariance of the estimated global coefficients. This is the
+     * inverse of the undamped Schur complement, so it accounts for the
+     * uncertainty of every local coefficient.
+     * @return the covariance matrix, or {@code null} if {@link #estimate}
+     *          has not yet been called.
+     * @throws java.lang.RuntimeException if the Schur complement is singular.
+     */
+    public double[][] estimatedGlobalCovariance() throws RuntimeException {
+        if (finalTermination == null) {
+            return null;
+        }
+        double[] cov = globalCovariance();
+        double[][] result = new double[numGlobal][numGlobal];
+        for (int row = 0; row < numGlobal; row++) {
+            System.arraycopy(cov, row * numGlobal, result[row], 0, numGlobal);
+        }
+        return result;
+    }
+
+    /**
+     * Get the covariance of the estimated local coefficients of one dataset,
+     * including the uncertainty they inherit from the global coefficients.
+     * @param dataset index of the dataset
+     * @return the covariance matrix, or {@code null} if {@link #estimate}
+     *          has not yet been called.
+     * @throws java.lang.RuntimeException if a block of alpha is singular.
+     */
+    public double[][] estimatedLocalCovariance(int dataset) throws RuntimeException {
+        if (finalTermination == null) {
+            return null;
+        }
+        double[] cov = globalCovariance();
+        Dataset set = datasets.get(dataset);
+        double[] inverse = new double[numLocal * numLocal];
+        set.localSolver.inverse(inverse);
+        // V^-1 + (V^-1 W') S^-1 (V^-1 W')'
+        double[][] result = new double[numLocal][numLocal];
+        for (int a = 0; a < numLocal; a++) {
+            for (int b = 0; b < numLocal; b++) {
+                double sum = inverse[a * numLocal + b];
+                for (int g = 0; g < numGlobal; g++) {
+                    double xa = set.vInvWt[a * numGlobal + g];
+                    for (int h = 0; h < numGlobal; h++) {
+                        sum += xa * cov[g * numGlobal + h] * set.vInvWt[b * numGlobal + h];
+                    }
+                }
+                result[a][b] = sum;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Inverse of the undamped Schur complement at the final coefficients.
+     * Also leaves each dataset's undamped local factorization in place.
+     */
+    protected double[] globalCovariance() {
+        if (finalGlobalCovariance == null) {
+            runPhase(Phase.SCHUR, 0);
+            sumSchur(0);
+            finalGlobalCovariance = new double[numGlobal * numGlobal];
+            if (numGlobal > 0) {
+                if (!schurSolver.factor(schur)) {
+                    throw new RuntimeException("Matrix is singular.");
+                }
+                schurSolver.inverse(finalGlobalCovariance);
+            }
+        }
+        return finalGlobalCovariance;
+    }
+
+    /**
+     * Largest diagonal element of the full alpha, global and local blocks.
+     */
+    protected double maxAlphaDiagonal() {
+        double max = 0;
+        for (int g = 0; g < numGlobal; g++) {
+            max = Math.max(max, globalAlpha[g * numGlobal + g]);
+        }
+        int n = numGlobal + numLocal;
+        for (Dataset set : datasets) {
+            for (int a = numGlobal; a < n; a++) {
+                max = Math.max(max, set.alpha[a * n + a]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Largest element of the full gradient beta, in magnitude.
+     */
+    protected double maxGradient() {
+        double max = 0;
+        for (int g = 0; g < numGlobal; g++) {
+            max = Math.max(max, Math.abs(globalBeta[g]));
+        }
+        for (Dataset set : datasets) {
+            for (int a = numGlobal; a < numGlobal + numLocal; a++) {
+                max = Math.max(max, Math.abs(set.beta[a]));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The reduction in Chi-Squared predicted by the linear model for the
+     * trial step, {@code delta.(beta + lambda*D*delta)} over the global and
+     * all of the local coefficients.
+     */
+    protected double predictedReduction(double lambda) {
+        boolean marquardt = (dampingScale == LevenbergMarquardtEstimator.DampingScale.MARQUARDT);
+        double predicted = 0;
+        for (int g = 0; g < numGlobal; g++) {
+            double damping = marquardt ? globalAlpha[g * numGlobal + g] : 1.0;
+            predicted += globalDelta[g] * (globalBeta[g] + lambda * damping * globalDelta[g]);
+        }
+        int n = numGlobal + numLocal;
+        for (Dataset set : datasets) {
+            for (int a = 0; a < numLocal; a++) {
+                int row = numGlobal + a;
+                double step = set.trialLocal[a] - set.local[a];
+                double damping = marquardt ? set.alpha[row * n + row] : 1.0;
+                predicted += step * (set.beta[row] + lambda * damping * step);
+            }
+        }
+        return predicted;
+    }
+
+    /**
+     * Did the trial step change every global and local coefficient by less
+     * than the step tolerance?
+     */
+    protected boolean isSmallStep() {
+        for (int g = 0; g < numGlobal; g++) {
+            if (!isSmallStep(globalCoef[g], trialGlobal[g])) {
+                return false;
+            }
+        }
+        for (Dataset set : datasets) {
+            for (int a = 0; a < numLocal; a++) {
+                if (!isSmallStep(set.local[a], set.trialLocal[a])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isSmallStep(double cur, double trial) {
+        return Math.abs(trial - cur) <= stepSizeStop * (Math.abs(cur) + stepSizeStop);
+    }
+
+    /**
+     * Form the damped Schur complement and its right hand side from the
+     * global sums and each dataset's contribution, in dataset order.
+     */
+    protected void sumSchur(double lambda) {
+        System.arraycopy(globalAlpha, 0, schur, 0, schur.length);
+        System.arraycopy(globalBeta, 0, schurRhs, 0, numGlobal);
+        boolean marquardt = (dampingScale == LevenbergMarquardtEstimator.DampingScale.MARQUARDT);
+        for (int g = 0; g < numGlobal; g++) {
+            if (marquardt) {
+                schur[g * numGlobal + g] *= 1.0 + lambda;
+            } else {
+                schur[g * numGlobal + g] += lambda;
+            }
+        }
+        for (Dataset set : datasets) {
+            for (int i = 0; i < schur.length; i++) {
+                schur[i] -= set.schurPart[i];
+            }
+            for (int g = 0; g < numGlobal; g++) {
+                schurRhs[g] -= set.rhsPart[g];
+            }
+        }
+    }
+
+    /**
+     * Steps of an iteration run independently for each dataset.
+     */
+    protected enum Phase {
+        /** Accumulate alpha, beta and Chi-Squared at the current coefficients. */
+        ALPHA,
+        /** Factor the damped local block and form the Schur contributions. */
+        SCHUR,
+        /** Back substitute the local step and compute the trial Chi-Squared. */
+        TRIAL
+    }
+
+    /**
+     * Run one phase for every dataset, in parallel if there are enough.
+     * @return the total Chi-Squared, for the {@code ALPHA} and {@code TRIAL}
+     *          phases.
+     */
+    protected double runPhase(Phase phase, double lambda) {
+        int numDatasets = datasets.size();
+        if (numDatasets >= parallelThreshold) {
+            for (Dataset set : datasets) {
+                set.phase = phase;
+                set.lambda = lambda;
+                set.reinitialize();
+            }
+            ForkJoinPool pool = (parallelPool != null) ? parallelPool : ForkJoinPool.commonPool();
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(datasets);
+                }
+            });
+        } else {
+            for (Dataset set : datasets) {
+                set.run(phase, lambda);
+            }
+        }
+        double chiSq = 0;
+        if (phase == Phase.ALPHA) {
+            // sum the global blocks in dataset order
+            Arrays.fill(globalAlpha, 0.0);
+            Arrays.fill(globalBeta, 0.0);
+            int n = numGlobal + numLocal;
+            for (Dataset set : datasets) {
+                double[] alpha = set.alpha;
+                for (int g = 0; g < numGlobal; g++) {
+                    for (int h = 0; h < numGlobal; h++) {
+                        globalAlpha[g * numGlobal + h] += alpha[g * n + h];
+                    }
+                    globalBeta[g] += set.beta[g];
+                }
+                chiSq += set.sums.chiSq;
+            }
+        } else if (phase == Phase.TRIAL) {
+            for (Dataset set : datasets) {
+                chiSq += set.trialChiSq;
+            }
+        }
+        return chiSq;
+    }
+
+    /**
+     * The data, local coefficients and block workspaces of one dataset.
+     */
+    protected class Dataset extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final DataSource data;
+        final double[] local = new double[numLocal];
+        final double[] trialLocal = new double[numLocal];
+        /** Global then local coefficients, as the function expects them. */
+        final double[] coef = new double[numGlobal + numLocal];
+        final AlphaBetaChi sums;
+        /** Full alpha and beta of this dataset, global rows first. */
+        final double[] alpha, beta;
+        /** Local block, and its damped factorization. */
+        final double[] localBlock = new double[numLocal * numLocal];
+        final SymmetricSolver localSolver = new SymmetricSolver(numLocal);
+        /** V^-1 W', {@code numLocal x numGlobal}, and V^-1 beta_local. */
+        final double[] vInvWt = new double[numLocal * numGlobal];
+        final double[] vInvBeta = new double[numLocal];
+        final double[] column = new double[numLocal];
+        /** W V^-1 W' and W V^-1 beta_local. */
+        final double[] schurPart = new double[numGlobal * numGlobal];
+        final double[] rhsPart = new double[numGlobal];
+        double trialChiSq;
+
+        Phase phase;
+        double lambda;
+
+        Dataset(DataSource data) {
+            this.data = data;
+            int n = numGlobal + numLocal;
+            sums = new AlphaBetaChi(n, function.getPointDimension());
+            alpha = new double[n * n];
+            beta = new double[n];
+        }
+
+        @Override
+        protected void compute() {
+            run(phase, lambda);
+        }
+
+        void run(Phase phase, double lambda) {
+            switch (phase) {
+                case ALPHA:
+                    accumulate();
+                    break;
+                case SCHUR:
+                    eliminate(lambda);
+                    break;
+                default:
+                    trial();
+            }
+        }
+
+        void accumulate() {
+            System.arraycopy(globalCoef, 0, coef, 0, numGlobal);
+            System.arraycopy(local, 0, coef, numGlobal, numLocal);
+            sums.clear();
+            sums.accumulate(function, data, coef, 0, data.size());
+            sums.copyTo(alpha, beta);
+        }
+
+        void eliminate(double lambda) {
+            int n = numGlobal + numLocal;
+            for (int a = 0; a < numLocal; a++) {
+                System.arraycopy(alpha, (numGlobal + a) * n + numGlobal, localBlock, a * numLocal, numLocal);
+            }
+            boolean marquardt = (dampingScale == LevenbergMarquardtEstimator.DampingScale.MARQUARDT);
+            if (numLocal > 0 && !localSolver.factor(localBlock, marquardt ? 1.0 + lambda : 1.0,
+                    marquardt ? 0.0 : lambda)) {
+                throw new RuntimeException("Local block of dataset " + datasets.indexOf(this) + " is singular");
+            }
+            // V^-1 W' one global column at a time
+            for (int g = 0; g < numGlobal; g++) {
+                System.arraycopy(alpha, g * n + numGlobal, column, 0, numLocal);
+                localSolver.solve(column, column);
+                for (int a = 0; a < numLocal; a++) {
+                    vInvWt[a * numGlobal + g] = column[a];
+                }
+            }
+            System.arraycopy(beta, numGlobal, vInvBeta, 0, numLocal);
+            localSolver.solve(vInvBeta, vInvBeta);
+            for (int g = 0; g < numGlobal; g++) {
+                int w = g * n + numGlobal;
+                double rhs = 0;
+                for (int a = 0; a < numLocal; a++) {
+                    rhs += alpha[w + a] * vInvBeta[a];
+                }
+                rhsPart[g] = rhs;
+                for (int h = g; h < numGlobal; h++) {
+                    double sum = 0;
+                    for (int a = 0; a < numLocal; a++) {
+                        sum += alpha[w + a] * vInvWt[a * numGlobal + h];
+                    }
+                    schurPart[g * numGlobal + h] = sum;
+                    schurPart[h * numGlobal + g] = sum;
+                }
+            }
+        }
+
+        void trial() {
+            // local step: V^-1 (beta_local - W' dg)
+            for (int a = 0; a < numLocal; a++) {
+                double step = vInvBeta[a];
+                for (int g = 0; g < numGlobal; g++) {
+                    step -= vInvWt[a * numGlobal + g] * globalDelta[g];
+                }
+                trialLocal[a] = local[a] + step;
+            }
+            System.arraycopy(trialGlobal, 0, coef, 0, numGlobal);
+            System.arraycopy(trialLocal, 0, coef, numGlobal, numLocal);
+            // accumulate into a scratch Chi-Squared without touching alpha
+            double saved = sums.chiSq;
+            sums.chiSq = 0;
+            sums.accumulateChiSq(function, data, coef, 0, data.size());
+            trialChiSq = sums.chiSq;
+            sums.chiSq = saved;
+        }
+
+        void acceptTrial() {
+            System.arraycopy(trialLocal, 0, local, 0, numLocal);
+        }
+    }
+}
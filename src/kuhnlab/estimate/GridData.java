@@ -0,0 +1,356 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Data points on the pixels of an image or image stack, read straight from
+ * the pixel buffer. Only the pixels are stored: the coordinates of each
+ * point are computed from its pixel index as it is read, as
+ * {@code origin + index * spacing} along each axis, so fitting a region of
+ * an image needs no per-pixel objects or coordinate arrays.
+ * <p>
+ * Pixels may be {@code short} (16-bit camera data, unsigned by default),
+ * {@code float}, or a {@link ShortBuffer}, for example one mapped from a
+ * file. Stored values are converted with {@code (raw - offset) * scale}.
+ * Points are the pixels of a rectangular region of interest, in row-major
+ * order: x fastest, then y, then z.
+ * <p>
+ * The weight of each point is either a constant sigma (1 by default) or a
+ * camera noise model, see {@link #setPoissonNoise}.
+ * <p>
+ * Models that implement {@link GridEstimateFunction} are also told the row
+ * structure of each block of points.
+ *
+ * @author jrkuhn
+ */
+public class GridData implements DataSource {
+    protected final int width, height, depth;
+    protected final int dimension;
+    protected short[] shortPixels;
+    protected float[] floatPixels;
+    protected ShortBuffer bufferPixels;
+    protected boolean unsigned = true;
+    protected double scale = 1.0, offset = 0.0;
+
+    protected double[] origin, spacing;
+    protected int roiX, roiY, roiZ, roiWidth, roiHeight, roiDepth;
+
+    protected double sigma = 1.0;
+    protected boolean poisson = false;
+    protected double gain, readNoiseSq;
+
+    /**
+     * Grid data over a 2D image of 16-bit pixels.
+     * @param pixels pixels in row-major order
+     * @param width  number of pixels per row
+     * @param height number of rows
+     */
+    public GridData(short[] pixels, int width, int height) {
+        this(width, height, 1, 2, pixels.length);
+        shortPixels = pixels;
+    }
+
+    /**
+     * Grid data over a stack of 16-bit images.
+     * @param pixels pixels in row-major order, one image after another
+     * @param width  number of pixels per row
+     * @param height number of rows per image
+     * @param depth  number of images
+     */
+    public GridData(short[] pixels, int width, int height, int depth) {
+        this(width, height, depth, 3, pixels.length);
+        shortPixels = pixels;
+    }
+
+    /**
+     * Grid data over a 2D image of float pixels.
+     * @param pixels pixels in row-major order
+     * @param width  number of pixels per row
+     * @param height number of rows
+     */
+    public GridData(float[] pixels, int width, int height) {
+        this(width, height, 1, 2, pixels.length);
+        floatPixels = pixels;
+    }
+
+    /**
+     * Grid data over a stack of float images.
+     * @param pixels pixels in row-major order, one image after another
+     * @param width  number of pixels per row
+     * @param height number of rows per image
+     * @param depth  number of images
+     */
+    public GridData(float[] pixels, int width, int height, int depth) {
+        this(width, height, depth, 3, pixels.length);
+        floatPixels = pixels;
+    }
+
+    /**
+     * Grid data over a 2D image of 16-bit pixels in a buffer. Pixels are
+     * read with absolute gets, so the buffer's position is ignored and never
+     * changed.
+     * @param pixels pixels in row-major order
+     * @param width  number of pixels per row
+     * @param height number of rows
+     */
+    public GridData(ShortBuffer pixels, int width, int height) {
+        this(width, height, 1, 2, pixels.limit());
+        bufferPixels = pixels;
+    }
+
+    /**
+     * Grid data over a stack of 16-bit images in a buffer. Pixels are read
+     * with absolute gets, so the buffer's position is ignored and never
+     * changed.
+     * @param pixels pixels in row-major order, one image after another
+     * @param width  number of pixels per row
+     * @param height number of rows per image
+     * @param depth  number of images
+     */
+    public GridData(ShortBuffer pixels, int width, int height, int depth) {
+        this(width, height, depth, 3, pixels.limit());
+        bufferPixels = pixels;
+    }
+
+    protected GridData(int width, int height, int depth, int dimension, int available) {
+        if (width < 1 || height < 1 || depth < 1) {
+            throw new RuntimeException("Grid dimensions must be positive");
+        }
+        if ((long) width * height * depth > available) {
+            throw new RuntimeException("Pixel buffer holds " + available + " pixels, expected " +
+                    ((long) width * height * depth));
+        }
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.dimension = dimension;
+        origin = new double[dimension];
+        spacing = new double[dimension];
+        Arrays.fill(spacing, 1.0);
+        setRegion(0, 0, 0, width, height, depth);
+    }
+
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    public long size() {
+        return (long) roiWidth * roiHeight * roiDepth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Set the coordinates of pixel (0, 0[, 0]) of the full image.
+     * @param origin one value per axis
+     */
+    public void setOrigin(double... origin) {
+        if (origin.length != dimension) {
+            throw new RuntimeException("Expected " + dimension + " origin coordinates");
+        }
+        this.origin = origin.clone();
+    }
+
+    /**
+     * Set the distance between neighbouring pixels along each axis.
+     * @param spacing one value per axis
+     */
+    public void setSpacing(double... spacing) {
+        if (spacing.length != dimension) {
+            throw new RuntimeException("Expected " + dimension + " spacings");
+        }
+        this.spacing = spacing.clone();
+    }
+
+    /**
+     * Restrict the points to a rectangle of a 2D image, or of every image of
+     * a stack.
+     * @param x first column
+     * @param y first row
+     * @param w number of columns
+     * @param h number of rows
+     */
+    public void setRegion(int x, int y, int w, int h) {
+        setRegion(x, y, 0, w, h, depth);
+    }
+
+    /**
+     * Restrict the points to a box of an image stack.
+     * @param x first column
+     * @param y first row
+     * @param z first image
+     * @param w number of columns
+     * @param h number of rows
+     * @param d number of images
+     */
+    public void setRegion(int x, int y, int z, int w, int h, int d) {
+        if (x < 0 || y < 0 || z < 0 || w < 1 || h < 1 || d < 1
+                || x + w > width || y + h > height || z + d > depth) {
+            throw new RuntimeException("Region is empty or outside the grid");
+        }
+        roiX = x;
+        roiY = y;
+        roiZ = z;
+        roiWidth = w;
+        roiHeight = h;
+        roiDepth = d;
+    }
+
+    /**
+     * Set the conversion from stored pixels to values,
+     * {@code (raw - offset) * scale}.
+     * @param scale  multiplier, e.g. photons per count
+     * @param offset raw value subtracted first, e.g. the camera offset
+     */
+    public void setScale(double scale, double offset) {
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    /**
+     * Choose whether 16-bit pixels are unsigned (0 to 65535, the default) or
+     * signed.
+     * @param unsigned {@code true} for unsigned pixels
+     */
+    public void setUnsigned(boolean unsigned) {
+        this.unsigned = unsigned;
+    }
+
+    /**
+     * Give every point the same weight.
+     * @param sigma estimated standard deviation of every value
+     */
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+        this.poisson = false;
+    }
+
+    /**
+     * Weight each point by a camera noise model: shot noise proportional to
+     * the value plus constant read noise, so that
+     * {@code sigma^2 = readNoise^2 + gain * max(value, 0)}.
+     * @param gain      variance per unit of value (1 for values in photons)
+     * @param readNoise standard deviation of the read noise. Must be positive.
+     */
+    public void setPoissonNoise(double gain, double readNoise) {
+        if (!(readNoise > 0) || gain < 0) {
+            throw new RuntimeException("Read noise must be positive and gain must not be negative");
+        }
+        this.gain = gain;
+        this.readNoiseSq = readNoise * readNoise;
+        this.poisson = true;
+    }
+
+    /**
+     * Get the value of a pixel of the full image.
+     * @param index row-major index of the pixel
+     * @return the converted value
+     */
+    public double getPixelValue(int index) {
+        double raw;
+        if (shortPixels != null) {
+            short s = shortPixels[index];
+            raw = unsigned ? (s & 0xFFFF) : s;
+        } else if (floatPixels != null) {
+            raw = floatPixels[index];
+        } else {
+            short s = bufferPixels.get(index);
+            raw = unsigned ? (s & 0xFFFF) : s;
+        }
+        return (raw - offset) * scale;
+    }
+
+    public void read(long from, int count, double[] xs, double[] ys, double[] sigmas) {
+        int index = (int) from;
+        int col = index % roiWidth;
+        int rest = index / roiWidth;
+        int row = rest % roiHeight;
+        int plane = rest / roiHeight;
+        boolean threeD = dimension == 3;
+        double firstX = origin[0] + roiX * spacing[0], dx = spacing[0];
+        double firstY = origin[1] + roiY * spacing[1], dy = spacing[1];
+        double firstZ = threeD ? origin[2] + roiZ * spacing[2] : 0, dz = threeD ? spacing[2] : 0;
+        int i = 0, p = 0;
+        while (i < count) {
+            // one run along a row
+            int n = Math.min(count - i, roiWidth - col);
+            int pixel = ((roiZ + plane) * height + roiY + row) * width + roiX + col;
+            double y = firstY + row * dy;
+            double z = firstZ + plane * dz;
+            for (int k = 0; k < n; k++, i++, pixel++) {
+                xs[p++] = firstX + (col + k) * dx;
+                xs[p++] = y;
+                if (threeD) {
+                    xs[p++] = z;
+                }
+                double value = getPixelValue(pixel);
+                ys[i] = value;
+                sigmas[i] = poisson ? Math.sqrt(readNoiseSq + gain * Math.max(value, 0)) : sigma;
+            }
+            col = 0;
+            if (++row == roiHeight) {
+                row = 0;
+                plane++;
+            }
+        }
+    }
+
+    /**
+     * Describe the rows of the block of points {@link #read} returns for the
+     * same range.
+     * @param from index of the first point
+     * @param count number of points
+     * @param rows receives the row structure
+     */
+    public void getRows(long from, int count, GridRows rows) {
+        int index = (int) from;
+        int col = index % roiWidth;
+        int rest = index / roiWidth;
+        int row = rest % roiHeight;
+        int plane = rest / roiHeight;
+        boolean threeD = dimension == 3;
+        // the first and last rows may be partial
+        int numRows = (col + count + roiWidth - 1) / roiWidth;
+        rows.ensureCapacity(numRows, threeD);
+        rows.numRows = numRows;
+        rows.firstX = origin[0] + roiX * spacing[0];
+        rows.spacingX = spacing[0];
+        rows.minColumn = (numRows > 1) ? 0 : col;
+        rows.maxColumn = (numRows > 1) ? roiWidth - 1 : col + count - 1;
+        double firstY = origin[1] + roiY * spacing[1];
+        double firstZ = threeD ? origin[2] + roiZ * spacing[2] : 0;
+        int i = 0;
+        for (int r = 0; r < numRows; r++) {
+            int n = Math.min(count - i, roiWidth - col);
+            rows.rowStart[r] = i;
+            rows.rowLength[r] = n;
+            rows.rowColumn[r] = col;
+            rows.rowY[r] = firstY + row * spacing[1];
+            if (threeD) {
+                rows.rowZ[r] = firstZ + plane * spacing[2];
+            }
+            i += n;
+            col = 0;
+            if (++row == roiHeight) {
+                row = 0;
+                plane++;
+            }
+        }
+    }
+}
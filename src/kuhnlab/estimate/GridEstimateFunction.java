@@ -0,0 +1,44 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A {@link BlockEstimateFunction} that can take advantage of points lying on
+ * a regular grid. When the data comes from a {@link GridData}, the estimator
+ * passes each block's {@link GridRows row structure} along with the packed
+ * points, so a separable model such as a Gaussian spot can compute its x
+ * terms once per column and its y terms once per row instead of once per
+ * point. For any other data source the plain block methods are used.
+ *
+ * @author jrkuhn
+ */
+public interface GridEstimateFunction extends BlockEstimateFunction {
+    /**
+     * Get the values and derivatives at a block of grid points.
+     * @param rows      row structure of the block
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     * @param jacobian  receives the derivatives at each point, laid out as
+     *                  given by {@link #getJacobianLayout}
+     * @param needed    which derivatives are used, or {@code null} for all
+     */
+    public void getEstimates(GridRows rows, double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian, boolean[] needed);
+
+    /**
+     * Get only the values at a block of grid points.
+     * @param rows      row structure of the block
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     */
+    public void getValues(GridRows rows, double[] points, int numPoints, double[] coef, double[] values);
+}
@@ -0,0 +1,86 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * The row structure of a block of points read from a {@link GridData}.
+ * Points on a grid come in rows: runs of consecutive points that share
+ * their y (and z) coordinate, with x stepping by a constant spacing. A
+ * {@link GridEstimateFunction} can use this to compute terms that depend
+ * only on y once per row, and terms that depend only on x once per column.
+ * <p>
+ * The x coordinate of ROI column {@code c} is exactly
+ * {@code firstX + c * spacingX}, the same value the data source writes into
+ * the packed points.
+ *
+ * @author jrkuhn
+ */
+public class GridRows {
+    /** Number of rows in the block. */
+    public int numRows;
+    /** Index within the block of the first point of each row. */
+    public int[] rowStart;
+    /** Number of points in each row. */
+    public int[] rowLength;
+    /** ROI column of the first point of each row. */
+    public int[] rowColumn;
+    /** y coordinate of each row. */
+    public double[] rowY;
+    /** z coordinate of each row, or {@code null} for a 2D grid. */
+    public double[] rowZ;
+    /** x coordinate of ROI column 0, and the step between columns. */
+    public double firstX, spacingX;
+    /** Smallest and largest ROI column in the block. */
+    public int minColumn, maxColumn;
+
+    protected double[] scratch;
+
+    public GridRows() {
+        this(AlphaBetaChi.BLOCK_SIZE);
+    }
+
+    /**
+     * Create a row description with room for some rows.
+     * @param capacity number of rows to allocate space for.
+     */
+    public GridRows(int capacity) {
+        allocate(Math.max(capacity, 1), false);
+    }
+
+    /**
+     * Make sure there is room for at least {@code capacity} rows.
+     * @param capacity number of rows
+     * @param threeD {@code true} if rows need a z coordinate
+     */
+    public void ensureCapacity(int capacity, boolean threeD) {
+        if (capacity > rowStart.length || (threeD && rowZ == null)) {
+            allocate(Math.max(capacity, rowStart.length), threeD);
+        }
+    }
+
+    private void allocate(int capacity, boolean threeD) {
+        rowStart = new int[capacity];
+        rowLength = new int[capacity];
+        rowColumn = new int[capacity];
+        rowY = new double[capacity];
+        rowZ = threeD ? new double[capacity] : null;
+    }
+
+    /**
+     * Get a scratch buffer owned by this description, for per-column or
+     * per-row terms. Each thread evaluating a model has its own description,
+     * so models can use the buffer without synchronization or allocation.
+     * The contents are not preserved between calls.
+     * @param length minimum length of the buffer
+     * @return the buffer
+     */
+    public double[] getScratch(int length) {
+        if (scratch == null || scratch.length < length) {
+            scratch = new double[length];
+        }
+        return scratch;
+    }
+}
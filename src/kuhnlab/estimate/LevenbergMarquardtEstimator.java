@@ -4,28 +4,191 @@
  */
 package kuhnlab.estimate;
 
-import Jama.Matrix;
 //import com.nr.util.COStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  *
  * @author jrkuhn
  */
 public class LevenbergMarquardtEstimator {
+    /**
+     * How lambda changes after each step.
+     */
+    public enum LambdaUpdate {
+        /**
+         * Divide lambda by {@code lambdaScalePerStep} after a bad step and
+         * multiply by it after a good one.
+         */
+        FIXED_FACTOR,
+        /**
+         * Nielsen's update. After a good step lambda shrinks by up to a factor
+         * of 3, depending on how well the actual reduction in Chi-Squared
+         * matched the reduction predicted by the linear model. After
+         * consecutive bad steps lambda grows by 2, 4, 8, ...
+         */
+        NIELSEN
+    }
+
+    /**
+     * Which matrix lambda is multiplied by when damping alpha.
+     */
+    public enum DampingScale {
+        /** Marquardt's damping, alpha + lambda * diag(alpha). */
+        MARQUARDT,
+        /**
+         * Levenberg's damping, alpha + lambda * I. The starting lambda is
+         * multiplied by the largest diagonal element of the initial alpha.
+         */
+        IDENTITY
+    }
+
+    /**
+     * Why the last {@link #estimate} stopped.
+     */
+    public enum TerminationReason {
+        /** Chi-Squared changed by less than the delta stop condition for enough iterations. */
+        DELTA_CHI_SQUARED,
+        /** An accepted step reduced Chi-Squared by less than the relative tolerance. */
+        RELATIVE_CHI_SQUARED,
+        /** The largest element of the gradient beta fell below the tolerance. */
+        GRADIENT,
+        /** An accepted step changed every coefficient by less than the tolerance. */
+        STEP_SIZE,
+        /** The maximum number of iterations was reached. */
+        MAX_ITERATIONS,
+        /** The deadline of an {@link #estimateAsync asynchronous} fit passed. */
+        DEADLINE,
+        /** The fit was stopped by {@link #cancel}. */
+        CANCELLED
+    }
+
+    /**
+     * The kinds of pass the estimator makes over the data.
+     */
+    protected enum Pass {
+        ALPHA_BETA_CHI, CHI_SQUARED, GEODESIC
+    }
+
     protected EstimateFunction function;
-    protected ArrayList<Datum> data;
-    protected Matrix finalCovariance;
+    /** Data points used by the estimate. */
+    protected DataSource data;
+    /** Storage for points added with {@link #addDataPoint} and friends. */
+    protected PackedData ownData;
+    /** Covariance of the last estimate, computed on demand. */
+    protected double[][] finalCovariance;
+    /** Factorization of the final alpha matrix. */
+    protected SymmetricSolver finalFactor;
+    /** Alpha, beta, and Chi-Squared sums re-used for every pass. */
+    protected AlphaBetaChi totals;
+    /** Per-chunk sums used when accumulating in parallel. */
+    protected ChunkTask[] chunkTasks;
+    protected RootTask rootTask;
+    /**
+     * Workspaces re-used by every call to {@link #estimate}. The alpha
+     * matrices are flat, row-major arrays.
+     */
+    protected double[] curAlpha, curBeta, trialAlpha, trialBeta, deltaCoef;
+    /** Solver for the damped normal equations. */
+    protected SymmetricSolver solver;
+    /** Workspaces for geodesic acceleration. */
+    protected double[] accelCoef, shiftedCoef;
+    /**
+     * Function coefficient index of each free coefficient of the current
+     * estimate. Alpha, beta and the step only cover these coefficients.
+     */
+    protected int[] activeCoef;
+    /** The current step spread over all coefficients, zero for fixed ones. */
+    protected double[] fullDelta;
+
+    /** Coefficients held fixed, or {@code null} if all are free. */
+    protected boolean[] fixedCoef;
+    /** Lower and upper bounds of each coefficient, or {@code null} if unbounded. */
+    protected double[] lowerBounds, upperBounds;
+    /** Alpha and beta with the coefficients pinned at a bound taken out. */
+    protected double[] boundAlpha, boundBeta;
+
+    /** Chi-Squared of the last estimated coefficients. */
+    protected double finalChiSquared = Double.NaN;
+    /** Number of iterations used by the last estimate. */
+    protected int finalIterations = 0;
+    /** Coefficients and lambda at the end of the last estimate. */
+    protected double[] finalCoef;
+    protected double finalLambda = Double.NaN;
+
+    /** Sliding window of data for incremental updates, or {@code null}. */
+    protected WindowData window;
+    protected int maxUpdateIterations = 3;
+    /** Latency statistics of {@link #update}, in nanoseconds. */
+    protected long numUpdates, lastUpdateNanos, totalUpdateNanos, maxUpdateNanos;
+
+    /**
+     * Evaluate only Chi-Squared for trial coefficients, and build alpha and
+     * beta only once a step is accepted.
+     */
+    protected boolean lazyJacobian;
+    /** Add up alpha, beta and Chi-Squared with Kahan compensation? */
+    protected boolean compensatedSummation = false;
+    /** Point evaluations of the function value alone during the last estimate. */
+    protected long valueEvaluations;
+    /** Point evaluations of the value and derivatives during the last estimate. */
+    protected long jacobianEvaluations;
+    /** Point evaluations of derivatives skipped because a step was rejected. */
+    protected long savedJacobianEvaluations;
+    /** Linear systems factored and solved during the last estimate. */
+    protected long linearSolves;
+    /**
+     * Time spent in alpha/beta passes, Chi-Squared passes and linear solves
+     * during the last estimate. Only measured while a listener is attached.
+     */
+    protected long alphaBetaNanos, chiSquaredNanos, solveNanos;
 
     protected double lambdaStart = 0.001;
     protected double lambdaScalePerStep = 0.1;
     protected double deltaChiSquaredStop = 0.1;
     protected int maxTotalIterations = 1000;
     protected int maxExtraIterations = 3;
+    protected double relativeChiSquaredStop = 0;
+    protected double gradientStop = 0;
+    protected double stepSizeStop = 0;
+
+    protected LambdaUpdate lambdaUpdate = LambdaUpdate.FIXED_FACTOR;
+    protected DampingScale dampingScale = DampingScale.MARQUARDT;
+    protected boolean geodesicAcceleration = false;
+    protected double geodesicStep = 0.1;
+    protected double geodesicMaxRatio = 0.75;
+    /** Why the last estimate stopped. */
+    protected TerminationReason finalTermination;
+
+    /** Set by {@link #cancel}; checked once per iteration. */
+    protected volatile boolean cancelRequested;
+    /** {@link System#nanoTime} after which the running fit stops, if {@code hasDeadline}. */
+    protected long deadline;
+    protected boolean hasDeadline;
+    /** May passes over the data be stopped part way? */
+    protected boolean interruptible;
+    /** Number of points between checks for a cancel or deadline within a pass. */
+    protected static final int INTERRUPT_CHECK_POINTS = 65536;
+
+    protected int parallelThreshold = Integer.MAX_VALUE;
+    protected int parallelChunkSize = 16384;
+    protected ForkJoinPool parallelPool;
     
-    protected PrintStream debugStream;
+    protected SolutionCache solutionCache;
+
+    protected FitListener[] listeners = new FitListener[0];
+    protected PrintingFitListener debugListener;
+    /** Re-used for every iteration report. */
+    protected final FitListener.Iteration iterationInfo = new FitListener.Iteration();
 
     /**
      * Create a new Estimator to estimate the coefficients of a function.
@@ -33,10 +196,86 @@ public class LevenbergMarquardtEstimator {
      * ($link EstimateFunction}.
      */
     public LevenbergMarquardtEstimator(EstimateFunction function) {
-        data = new ArrayList<Datum>();
         this.function = function;
-        debugStream = null;
+        ownData = new PackedData(function.getPointDimension());
+        data = ownData;
+        debugListener = null;
         finalCovariance = null;
+        finalFactor = null;
+        totals = null;
+        parallelPool = null;
+        lazyJacobian = overridesGetValue(function);
+    }
+
+    /**
+     * Create a new Estimator with the same function and settings as another
+     * one, but with no data. Useful to give each worker thread its own
+     * estimator and workspaces.
+     * @param template estimator whose function and settings to copy.
+     */
+    public LevenbergMarquardtEstimator(LevenbergMarquardtEstimator template) {
+        this(template.function);
+        copySettings(template);
+    }
+
+    /**
+     * Copy the settings (lambda, stop conditions, damping, bounds, listeners,
+     * parallelism, etc.) of another estimator of the same function. Data,
+     * results, workspaces and the solution cache are not copied. Used to bring re-used worker
+     * estimators up to date with their template.
+     * @param template estimator whose settings to copy.
+     * @throws java.lang.RuntimeException if the template has a different
+     *          function.
+     */
+    public void copySettings(LevenbergMarquardtEstimator template) throws RuntimeException {
+        if (template.function != function) {
+            throw new RuntimeException("Cannot copy settings from an estimator of another function");
+        }
+        lambdaStart = template.lambdaStart;
+        lambdaScalePerStep = template.lambdaScalePerStep;
+        deltaChiSquaredStop = template.deltaChiSquaredStop;
+        maxTotalIterations = template.maxTotalIterations;
+        maxExtraIterations = template.maxExtraIterations;
+        maxUpdateIterations = template.maxUpdateIterations;
+        relativeChiSquaredStop = template.relativeChiSquaredStop;
+        gradientStop = template.gradientStop;
+        stepSizeStop = template.stepSizeStop;
+        lambdaUpdate = template.lambdaUpdate;
+        dampingScale = template.dampingScale;
+        geodesicAcceleration = template.geodesicAcceleration;
+        geodesicStep = template.geodesicStep;
+        geodesicMaxRatio = template.geodesicMaxRatio;
+        fixedCoef = (template.fixedCoef == null) ? null : template.fixedCoef.clone();
+        lowerBounds = (template.lowerBounds == null) ? null : template.lowerBounds.clone();
+        upperBounds = (template.upperBounds == null) ? null : template.upperBounds.clone();
+        parallelThreshold = template.parallelThreshold;
+        parallelChunkSize = template.parallelChunkSize;
+        parallelPool = template.parallelPool;
+        lazyJacobian = template.lazyJacobian;
+        compensatedSummation = template.compensatedSummation;
+        listeners = template.listeners.clone();
+        debugListener = template.debugListener;
+    }
+
+    /**
+     * Does the function provide its own, presumably cheaper,
+     * {@link EstimateFunction#getValue}?
+     */
+    private static boolean overridesGetValue(EstimateFunction function) {
+        try {
+            return function.getClass().getMethod("getValue", double[].class, double[].class)
+                    .getDeclaringClass() != EstimateFunction.class;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the function whose coefficients are being estimated.
+     * @return the function
+     */
+    public EstimateFunction getFunction() {
+        return function;
     }
 
     /**
@@ -54,7 +293,259 @@ public class LevenbergMarquardtEstimator {
             throw new RuntimeException("Data point dimension " + point.length +
                     " does not match function dimension " + function.getPointDimension());
         }
-        data.add(new Datum(point, value, weight));
+        writableData().add(point, value, weight);
+    }
+
+    /**
+     * Adds many data points at once from packed arrays.
+     * 
+     * @param xs    packed point coordinates, {@link EstimateFunction#getPointDimension}
+     *              values for each point
+     * @param ys    value of the function at each point
+     * @param sigmas estimated standard deviation of each value
+     * @throws java.lang.RuntimeException if the array lengths do not match
+     */
+    public void addDataPoints(double[] xs, double[] ys, double[] sigmas) throws RuntimeException {
+        addDataPoints(xs, ys, sigmas, 0, ys.length);
+    }
+
+    /**
+     * Adds a range of data points at once from packed arrays.
+     * 
+     * @param xs    packed point coordinates, {@link EstimateFunction#getPointDimension}
+     *              values for each point
+     * @param ys    value of the function at each point
+     * @param sigmas estimated standard deviation of each value
+     * @param from  index of the first point to add
+     * @param count number of points to add
+     * @throws java.lang.RuntimeException if the array lengths do not match
+     */
+    public void addDataPoints(double[] xs, double[] ys, double[] sigmas, int from, int count) throws RuntimeException {
+        checkPackedArrays(xs, ys, sigmas.length, from, count);
+        writableData().addAll(xs, ys, sigmas, from, count);
+    }
+
+    /**
+     * Adds many data points at once from packed arrays, all with the same weight.
+     * 
+     * @param xs    packed point coordinates, {@link EstimateFunction#getPointDimension}
+     *              values for each point
+     * @param ys    value of the function at each point
+     * @param sigma estimated standard deviation of every value
+     * @throws java.lang.RuntimeException if the array lengths do not match
+     */
+    public void addDataPoints(double[] xs, double[] ys, double sigma) throws RuntimeException {
+        checkPackedArrays(xs, ys, ys.length, 0, ys.length);
+        writableData().addAll(xs, ys, sigma, 0, ys.length);
+    }
+
+    /**
+     * Make room for at least {@code capacity} data points, so that adding
+     * many points in blocks does not repeatedly grow the storage.
+     * @param capacity total number of points to hold
+     * @throws java.lang.RuntimeException if an external data source is set,
+     *          or there are too many points to hold in memory
+     */
+    public void ensureDataCapacity(long capacity) throws RuntimeException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many points for in-memory storage");
+        }
+        writableData().ensureCapacity((int) capacity);
+    }
+
+    /**
+     * Remove all data points, and detach any data source set with
+     * {@link #setDataSource}. Storage is kept so the estimator can be
+     * re-filled without allocating.
+     */
+    public void clearData() {
+        ownData.clear();
+        data = ownData;
+    }
+
+    /**
+     * Get the number of data points.
+     * @return number of data points
+     */
+    public long getNumDataPoints() {
+        return data.size();
+    }
+
+    /**
+     * Fit an external source of data points instead of points added to this
+     * estimator, e.g. a {@link MappedDataSource} too large for the heap. The
+     * source is only read, so one source can be shared by several estimators.
+     * Points cannot be added while an external source is set; use
+     * {@link #clearData} to return to the estimator's own storage.
+     * @param source source of data points
+     * @throws java.lang.RuntimeException if the source's point dimension does
+     *          not match the function
+     */
+    public void setDataSource(DataSource source) throws RuntimeException {
+        if (source.getPointDimension() != function.getPointDimension()) {
+            throw new RuntimeException("Data source dimension " + source.getPointDimension() +
+                    " does not match function dimension " + function.getPointDimension());
+        }
+        data = source;
+    }
+
+    /**
+     * Get the data points used by the estimate.
+     * @return the current data source
+     */
+    public DataSource getDataSource() {
+        return data;
+    }
+
+    private PackedData writableData() {
+        if (data == window && window != null) {
+            throw new RuntimeException("Use appendDataPoint to add points to a window");
+        }
+        if (data != ownData) {
+            throw new RuntimeException("Cannot add points to an external data source");
+        }
+        return ownData;
+    }
+
+    /**
+     * Switch to incremental mode, fitting a sliding window of the most recent
+     * data points. Add points with {@link #appendDataPoint} (which evicts the
+     * oldest point once the window is full), then call {@link #update} to
+     * refit. Any existing data points are discarded.
+     * @param capacity maximum number of points in the window.
+     * @param maxIterations maximum iterations for each {@link #update}, as
+     *          counted by {@link #estimatedIterations}. Must be positive.
+     *          Because an update starts from the previous solution, one to
+     *          three iterations are usually enough.
+     */
+    public void setupWindow(int capacity, int maxIterations) {
+        if (maxIterations < 1) {
+            throw new RuntimeException("Updates need at least one iteration");
+        }
+        window = new WindowData(function.getPointDimension(), capacity);
+        maxUpdateIterations = maxIterations;
+        data = window;
+        numUpdates = 0;
+        lastUpdateNanos = 0;
+        totalUpdateNanos = 0;
+        maxUpdateNanos = 0;
+    }
+
+    /**
+     * Append a data point to the sliding window, evicting the oldest point
+     * if the window is full.
+     * @param point multidimensional point to add.
+     * @param value value of function at this point
+     * @param weight estimated standard deviation of the value
+     * @throws java.lang.RuntimeException if {@link #setupWindow} has not been
+     *          called, or the point has the wrong dimension
+     */
+    public void appendDataPoint(double[] point, double value, double weight) throws RuntimeException {
+        if (point.length != function.getPointDimension()) {
+            throw new RuntimeException("Data point dimension " + point.length +
+                    " does not match function dimension " + function.getPointDimension());
+        }
+        activeWindow().append(point, value, weight);
+    }
+
+    /**
+     * Append many data points to the sliding window, evicting the oldest
+     * points as needed.
+     * @param xs    packed point coordinates
+     * @param ys    value of the function at each point
+     * @param sigmas estimated standard deviation of each value
+     * @throws java.lang.RuntimeException if {@link #setupWindow} has not been
+     *          called, or the array lengths do not match
+     */
+    public void appendDataPoints(double[] xs, double[] ys, double[] sigmas) throws RuntimeException {
+        checkPackedArrays(xs, ys, sigmas.length, 0, ys.length);
+        activeWindow().appendAll(xs, ys, sigmas);
+    }
+
+    /**
+     * Remove the oldest points from the sliding window.
+     * @param count number of points to remove
+     */
+    public void evictDataPoints(int count) {
+        activeWindow().evict(count);
+    }
+
+    private WindowData activeWindow() {
+        if (window == null || data != window) {
+            throw new RuntimeException("Call setupWindow before appending data points");
+        }
+        return window;
+    }
+
+    /**
+     * Refit the current data, warm-starting from the coefficients and lambda
+     * of the previous {@link #estimate} or {@link #update}. In window mode it
+     * runs at most the number of iterations given to {@link #setupWindow};
+     * otherwise the limit is that of {@link #setupMaximumIterations}, as for
+     * {@link #estimate}. Records the time taken.
+     * @return the updated coefficients.
+     * @throws java.lang.RuntimeException if there is no previous estimate to
+     *          start from, or the estimate fails.
+     */
+    public double[] update() throws RuntimeException {
+        if (finalCoef == null) {
+            throw new RuntimeException("Call estimate once before update");
+        }
+        cancelRequested = false;
+        long start = System.nanoTime();
+        double[] coef = (data == window) ? fitAtMost(finalCoef, finalLambda, maxUpdateIterations)
+                : fit(finalCoef, finalLambda, maxTotalIterations);
+        long elapsed = System.nanoTime() - start;
+        numUpdates++;
+        lastUpdateNanos = elapsed;
+        totalUpdateNanos += elapsed;
+        maxUpdateNanos = Math.max(maxUpdateNanos, elapsed);
+        return coef;
+    }
+
+    /**
+     * Get the number of times {@link #update} has been called since
+     * {@link #setupWindow}.
+     * @return number of updates
+     */
+    public long getNumUpdates() {
+        return numUpdates;
+    }
+
+    /**
+     * Get the wall-clock time taken by the last {@link #update}.
+     * @return latency in nanoseconds
+     */
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    /**
+     * Get the mean wall-clock time taken by {@link #update}.
+     * @return mean latency in nanoseconds, or 0 if there have been no updates
+     */
+    public double getMeanUpdateNanos() {
+        return (numUpdates == 0) ? 0 : (double) totalUpdateNanos / numUpdates;
+    }
+
+    /**
+     * Get the longest wall-clock time taken by {@link #update}.
+     * @return maximum latency in nanoseconds
+     */
+    public long getMaxUpdateNanos() {
+        return maxUpdateNanos;
+    }
+
+    private void checkPackedArrays(double[] xs, double[] ys, int numSigmas, int from, int count) {
+        int dim = function.getPointDimension();
+        if (from < 0 || count < 0 || from + count > ys.length || from + count > numSigmas) {
+            throw new RuntimeException("Data range " + from + " + " + count +
+                    " exceeds the value or sigma arrays");
+        }
+        if ((long)(from + count) * dim > xs.length) {
+            throw new RuntimeException("Packed point array of length " + xs.length +
+                    " is too short for " + (from + count) + " points of dimension " + dim);
+        }
     }
     
     public void setupLambda(double lambdaStart, double lambdaScalePerStep) {
@@ -70,9 +561,209 @@ public class LevenbergMarquardtEstimator {
     public void setupMaximumIterations(int maxIterations) {
         this.maxTotalIterations = maxIterations;
     }
+
+    /**
+     * Stop when an accepted step reduces Chi-Squared by less than
+     * {@code relativeChiSquared} times its new value.
+     * @param relativeChiSquared relative tolerance, or 0 to disable (the default).
+     */
+    public void setupRelativeChiSquaredStopCondition(double relativeChiSquared) {
+        this.relativeChiSquaredStop = relativeChiSquared;
+    }
+
+    /**
+     * Stop when every element of the gradient, beta, is smaller in magnitude
+     * than {@code gradient}.
+     * @param gradient gradient tolerance, or 0 to disable (the default).
+     */
+    public void setupGradientStopCondition(double gradient) {
+        this.gradientStop = gradient;
+    }
+
+    /**
+     * Stop when an accepted step changes every coefficient by less than
+     * {@code stepSize * (|coef| + stepSize)}.
+     * @param stepSize relative step tolerance, or 0 to disable (the default).
+     */
+    public void setupStepSizeStopCondition(double stepSize) {
+        this.stepSizeStop = stepSize;
+    }
+
+    /**
+     * Choose how lambda is damped and updated.
+     * @param update how lambda changes after good and bad steps.
+     *          {@link LambdaUpdate#FIXED_FACTOR} by default.
+     * @param scale which matrix lambda multiplies.
+     *          {@link DampingScale#MARQUARDT} by default.
+     */
+    public void setupDamping(LambdaUpdate update, DampingScale scale) {
+        this.lambdaUpdate = update;
+        this.dampingScale = scale;
+    }
+
+    /**
+     * Add a second order geodesic acceleration correction to each step
+     * (Transtrum and Sethna). The correction costs an extra pass over the
+     * data with derivatives per iteration, but can greatly reduce the number
+     * of iterations along narrow curved valleys of Chi-Squared.
+     * @param enable {@code true} to use geodesic acceleration.
+     * @param maxRatio reject a step if its acceleration is larger than
+     *          {@code maxRatio} times the step. Typically 0.75.
+     */
+    public void setupGeodesicAcceleration(boolean enable, double maxRatio) {
+        this.geodesicAcceleration = enable;
+        this.geodesicMaxRatio = maxRatio;
+    }
+
+    /**
+     * Choose whether trial steps are tested using function values alone.
+     * When enabled, each trial step costs one value-only pass over the data;
+     * derivatives, alpha and beta are only computed for accepted steps, and
+     * none of that work is wasted on rejected ones. Accepted steps cost an
+     * extra value-only pass.
+     * <p>
+     * By default this is enabled if the function overrides
+     * {@link EstimateFunction#getValue}.
+     * @param lazy {@code true} to evaluate derivatives only for accepted steps.
+     */
+    public void setupLazyJacobian(boolean lazy) {
+        this.lazyJacobian = lazy;
+    }
+
+    /**
+     * Choose how alpha, beta and Chi-Squared are summed over the data. Plain
+     * summation accumulates a rounding error that grows with the number of
+     * points. With compensated summation each block of points is summed on
+     * its own and the block sums are added with Kahan compensation, so the
+     * sums stay accurate to a few units in the last place for any number of
+     * points, at a small extra cost per block. Worth enabling for datasets
+     * of millions of points, especially those stored in {@link FloatData}.
+     * @param compensated {@code true} to use compensated summation.
+     */
+    public void setupCompensatedSummation(boolean compensated) {
+        this.compensatedSummation = compensated;
+    }
     
+    /**
+     * Hold some coefficients fixed at their initial guess. Fixed coefficients
+     * are removed from the linear system entirely: alpha, beta and the solve
+     * only cover the free coefficients, and the function is told (through
+     * {@link EstimateFunction.Estimate#needed}) that it may skip their
+     * derivatives. Fixed coefficients have zero covariance.
+     * @param fixed {@code true} for each coefficient to hold fixed, or
+     *          {@code null} to fit all of them.
+     * @throws java.lang.RuntimeException if the array is the wrong length
+     */
+    public void setupFixedCoefficients(boolean[] fixed) throws RuntimeException {
+        if (fixed != null && fixed.length != function.getNumCoef()) {
+            throw new RuntimeException("Expected " + function.getNumCoef() + " fixed flags");
+        }
+        this.fixedCoef = (fixed == null) ? null : fixed.clone();
+    }
+
+    /**
+     * Keep coefficients within box bounds. Every trial step, and the initial
+     * guess, is projected onto the box, so the fit moves along the bounds
+     * instead of rejecting steps that would cross them.
+     * @param lower lowest value of each coefficient (may contain
+     *          {@code Double.NEGATIVE_INFINITY}), or {@code null} for none.
+     * @param upper highest value of each coefficient (may contain
+     *          {@code Double.POSITIVE_INFINITY}), or {@code null} for none.
+     * @throws java.lang.RuntimeException if an array is the wrong length, or
+     *          a lower bound is above its upper bound
+     */
+    public void setupBounds(double[] lower, double[] upper) throws RuntimeException {
+        int numCoef = function.getNumCoef();
+        if ((lower != null && lower.length != numCoef) || (upper != null && upper.length != numCoef)) {
+            throw new RuntimeException("Expected " + numCoef + " bounds");
+        }
+        if (lower != null && upper != null) {
+            for (int i = 0; i < numCoef; i++) {
+                if (lower[i] > upper[i]) {
+                    throw new RuntimeException("Lower bound of coefficient " + i + " is above its upper bound");
+                }
+            }
+        }
+        this.lowerBounds = (lower == null) ? null : lower.clone();
+        this.upperBounds = (upper == null) ? null : upper.clone();
+    }
+
+    /**
+     * Accumulate alpha, beta, and Chi-Squared in parallel when there are at
+     * least {@code threshold} data points. The data is split into chunks of
+     * {@code chunkSize} points; each chunk is summed by its own worker and the
+     * partial sums are merged in chunk order, so results are reproducible
+     * bit-for-bit for a given chunk size regardless of the number of threads.
+     * <p>
+     * In parallel mode the {@link EstimateFunction} is called from several
+     * threads at once and must be thread-safe.
+     * 
+     * @param threshold minimum number of data points to run in parallel.
+     *          Use {@link Integer#MAX_VALUE} to always run serially (the default).
+     * @param chunkSize number of data points summed by each task.
+     */
+    public void setupParallel(int threshold, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new RuntimeException("Parallel chunk size must be positive");
+        }
+        this.parallelThreshold = threshold;
+        this.parallelChunkSize = chunkSize;
+        this.chunkTasks = null;
+    }
+
+    /**
+     * Set the pool used for parallel accumulation.
+     * @param pool the pool to use, or {@code null} for the
+     *          {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public void setParallelPool(ForkJoinPool pool) {
+        this.parallelPool = pool;
+    }
+    
+    /**
+     * Print the progress of each fit as text. This is a convenience for
+     * attaching a {@link PrintingFitListener}; formatting every coefficient
+     * on every iteration is slow, so use {@link #addFitListener} with a
+     * structured listener such as {@link FitMetrics} to measure performance.
+     * @param debug stream to print to, or {@code null} to stop printing.
+     */
     public void setDebugStream(PrintStream debug) {
-        this.debugStream = debug;
+        if (debugListener != null) {
+            removeFitListener(debugListener);
+            debugListener = null;
+        }
+        if (debug != null) {
+            debugListener = new PrintingFitListener(debug);
+            addFitListener(debugListener);
+        }
+    }
+
+    /**
+     * Attach a listener to receive a report after every iteration and at the
+     * start and end of every fit. While any listener is attached the
+     * estimator also times its passes over the data and its linear solves.
+     * @param listener the listener to add
+     */
+    public void addFitListener(FitListener listener) {
+        FitListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    /**
+     * Detach a listener added by {@link #addFitListener}.
+     * @param listener the listener to remove
+     */
+    public void removeFitListener(FitListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                FitListener[] shrunk = new FitListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, shrunk, 0, i);
+                System.arraycopy(listeners, i + 1, shrunk, i, shrunk.length - i);
+                listeners = shrunk;
+                return;
+            }
+        }
     }
 
     /**
@@ -87,182 +778,812 @@ public class LevenbergMarquardtEstimator {
      *      is singular.
      */
     public double[] estimate(double[] coefGuess) throws RuntimeException {
+        return estimate(null, coefGuess);
+    }
+
+    /**
+     * Fit the coefficients, warm-starting from a cached solution if there
+     * is one (see {@link #setSolutionCache}). The fit starts from the
+     * solution stored under {@code key}, or else from the one whose data
+     * fingerprint is nearest, and is then stored under {@code key}. Fixed
+     * coefficients always keep their values from {@code coefGuess}. Without
+     * a cache this is the same as {@link #estimate(double[])}.
+     * @param key identifies the fit, e.g. a region or pixel, or {@code null}
+     *          to key the fit by a fingerprint of its data.
+     * @param coefGuess Initial guess of the coefficients, used when nothing
+     *          suitable is cached.
+     * @return The final estimated coefficients.
+     * @throws java.lang.RuntimeException as {@link #estimate(double[])}
+     */
+    public double[] estimate(Object key, double[] coefGuess) throws RuntimeException {
+        cancelRequested = false;
+        if (solutionCache == null) {
+            return fit(coefGuess, Double.NaN, maxTotalIterations);
+        }
+        double[] fingerprint = SolutionCache.fingerprint(data);
+        SolutionCache.Solution cached = solutionCache.lookup(key, fingerprint);
+        double[] coef;
+        if (cached != null && cached.coef.length == coefGuess.length) {
+            double[] start = coefGuess.clone();
+            for (int c = 0; c < start.length; c++) {
+                if (fixedCoef == null || !fixedCoef[c]) {
+                    start[c] = cached.coef[c];
+                }
+            }
+            coef = fit(start, cached.lambda, maxTotalIterations);
+        } else {
+            cached = null;
+            coef = fit(coefGuess, Double.NaN, maxTotalIterations);
+        }
+        solutionCache.store(key, new SolutionCache.Solution(finalCoef.clone(), finalLambda,
+                finalChiSquared, finalIterations, new SymmetricSolver(finalFactor),
+                activeCoef.clone(), fingerprint), cached != null);
+        return coef;
+    }
+
+    /**
+     * Warm-start fits from earlier solutions. The cache may be shared with
+     * other estimators of the same function, but is not copied to
+     * estimators made from this one (see {@link #copySettings}), so batch
+     * and multi-start workers always start from their own guesses.
+     * @param cache the cache to use, or {@code null} to always start from
+     *          the given guess (the default).
+     */
+    public void setSolutionCache(SolutionCache cache) {
+        this.solutionCache = cache;
+    }
+
+    public SolutionCache getSolutionCache() {
+        return solutionCache;
+    }
+
+    /**
+     * Fit the coefficients on another thread, with no deadline.
+     * @param coefGuess Initial guess of the coefficients.
+     * @return a future of the result
+     * @see #estimateAsync(double[], long, TimeUnit, Executor)
+     */
+    public CompletableFuture<FitResult> estimateAsync(double[] coefGuess) {
+        return estimateAsync(coefGuess, -1, TimeUnit.NANOSECONDS, null);
+    }
+
+    /**
+     * Fit the coefficients on another thread, stopping at a deadline.
+     * @param coefGuess Initial guess of the coefficients.
+     * @param timeout time allowed from now, or negative for no deadline
+     * @param unit unit of {@code timeout}
+     * @return a future of the result
+     * @see #estimateAsync(double[], long, TimeUnit, Executor)
+     */
+    public CompletableFuture<FitResult> estimateAsync(double[] coefGuess, long timeout, TimeUnit unit) {
+        return estimateAsync(coefGuess, timeout, unit, null);
+    }
+
+    /**
+     * Fit the coefficients on another thread. The fit checks, once per
+     * iteration, whether its deadline has passed or {@link #cancel} has been
+     * called. If so it stops and completes the future normally with the best
+     * coefficients accepted so far and a {@link TerminationReason#DEADLINE}
+     * or {@link TerminationReason#CANCELLED} status. Cancelling the future
+     * itself also stops the fit, but then no result is delivered.
+     * <p>
+     * The future completes exceptionally if the fit fails (for example if
+     * alpha is singular). The estimator runs one fit at a time: do not use
+     * it for anything else until the future has completed. After that the
+     * {@code estimated...} accessors, such as {@link #estimatedCovariance},
+     * describe the finished fit.
+     * @param coefGuess Initial guess of the coefficients.
+     * @param timeout time allowed from now, or negative for no deadline
+     * @param unit unit of {@code timeout}
+     * @param executor executor to run the fit on, or {@code null} for the
+     *          parallel pool (see {@link #setParallelPool}).
+     * @return a future of the result
+     */
+    public CompletableFuture<FitResult> estimateAsync(double[] coefGuess, long timeout, TimeUnit unit,
+            Executor executor) {
+        final double[] guess = coefGuess.clone();
+        final boolean limited = timeout >= 0;
+        final long until = limited ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        if (executor == null) {
+            executor = (parallelPool != null) ? parallelPool : ForkJoinPool.commonPool();
+        }
+        cancelRequested = false;
+        CompletableFuture<FitResult> future = CompletableFuture.supplyAsync(new Supplier<FitResult>() {
+            public FitResult get() {
+                deadline = until;
+                hasDeadline = limited;
+                try {
+                    double[] coef = fit(guess, Double.NaN, maxTotalIterations);
+                    return new FitResult(coef, finalChiSquared, finalIterations, finalLambda,
+                            finalTermination);
+                } finally {
+                    hasDeadline = false;
+                }
+            }
+        }, executor);
+        future.whenComplete(new BiConsumer<FitResult, Throwable>() {
+            public void accept(FitResult result, Throwable ex) {
+                if (ex instanceof CancellationException) {
+                    cancel();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Ask the running fit to stop after its current iteration, keeping the
+     * best coefficients so far. Safe to call from any thread. A fit started
+     * after this call is not affected.
+     */
+    public void cancel() {
+        cancelRequested = true;
+    }
+
+    /**
+     * Run at most {@code iterations} Levenberg-Marquardt iterations, as
+     * counted by {@link #estimatedIterations}.
+     * @param coefGuess Initial guess of the coefficients.
+     * @param warmLambda lambda to start with, or {@code NaN} to start from
+     *          {@code lambdaStart}.
+     * @param iterations maximum number of iterations. Must be positive.
+     */
+    protected double[] fitAtMost(double[] coefGuess, double warmLambda, int iterations) throws RuntimeException {
+        if (iterations < 1) {
+            throw new RuntimeException("At least one iteration is needed");
+        }
+        // fit() stops before reaching its bound
+        return fit(coefGuess, warmLambda, iterations + 1);
+    }
+
+    /**
+     * Internal function to run the Levenberg-Marquardt iterations.
+     * @param coefGuess Initial guess of the coefficients.
+     * @param warmLambda lambda to start with, or {@code NaN} to start from
+     *          {@code lambdaStart}.
+     * @param maxIterations bound on the iteration count, with the same
+     *          meaning as {@link #setupMaximumIterations}: at most
+     *          {@code maxIterations - 1} iterations are run, and always at
+     *          least one. See {@link #fitAtMost} for an exact count.
+     */
+    protected double[] fit(double[] coefGuess, double warmLambda, int maxIterations) throws RuntimeException {
         // Check coefficient dimensions
         int numCoef = coefGuess.length;
         if (numCoef != function.getNumCoef()) {
             throw new RuntimeException("Number of coefficients " + numCoef +
                     " does not match function " + function.getNumCoef());
         }
+        // work out which coefficients are free
+        int numActive = 0;
+        int[] active = new int[numCoef];
+        for (int c = 0; c < numCoef; c++) {
+            if (fixedCoef == null || !fixedCoef[c]) {
+                active[numActive++] = c;
+            }
+        }
+        if (numActive == 0) {
+            throw new RuntimeException("All coefficients are fixed");
+        }
         // make sure there is enough data to fit
-        if (data.size() < numCoef) {
+        if (data.size() < numActive) {
             throw new RuntimeException("There are fewer data points than coefficients");
         }
 
-        // pick a modest value for lambda
-        double lambda = lambdaStart;
+        // pick a modest value for lambda, unless we are warm-starting
+        boolean warmStart = !Double.isNaN(warmLambda);
+        double lambda = warmStart ? warmLambda : lambdaStart;
 
-        Matrix curAlpha = new Matrix(numCoef, numCoef);
-        Matrix curBeta = new Matrix(numCoef, 1);
         double[] curCoef = Arrays.copyOf(coefGuess, numCoef);
-        
-        Matrix trialAlpha = new Matrix(numCoef, numCoef);
-        Matrix trialBeta = new Matrix(numCoef, 1);
         double[] trialCoef = new double[numCoef];
+        project(curCoef);
         
-        Matrix alphaPrime = new Matrix(numCoef, numCoef);
+        int[] activeMap = (numActive == numCoef) ? null : Arrays.copyOf(active, numActive);
+        if (totals == null || !totals.matches(numCoef, activeMap)) {
+            totals = new AlphaBetaChi(numCoef, activeMap, function.getPointDimension());
+            chunkTasks = null;
+            activeCoef = Arrays.copyOf(active, numActive);
+            curAlpha = new double[numActive * numActive];
+            curBeta = new double[numActive];
+            trialAlpha = new double[numActive * numActive];
+            trialBeta = new double[numActive];
+            deltaCoef = new double[numActive];
+            accelCoef = new double[numActive];
+            fullDelta = new double[numCoef];
+            shiftedCoef = new double[numCoef];
+            solver = new SymmetricSolver(numActive);
+            finalFactor = new SymmetricSolver(numActive);
+        }
+        totals.setCompensated(compensatedSummation);
+        finalCovariance = null;
         
-        int i, extraIterations = 0, iterations = 1;
+        int i, iterations = 1;
+        valueEvaluations = 0;
+        jacobianEvaluations = 0;
+        savedJacobianEvaluations = 0;
+        linearSolves = 0;
+        alphaBetaNanos = 0;
+        chiSquaredNanos = 0;
+        solveNanos = 0;
+        boolean reporting = listeners.length > 0;
+        TerminationReason reason = TerminationReason.MAX_ITERATIONS;
         
         // Solve an initial alpha, beta, and chi-sq based on guessed coefficients
-        double curChiSq = calcAlphaBetaChi(curCoef, curAlpha, curBeta);
-        double lastChiSq = curChiSq;
+        double startChiSq = calcAlphaBetaChi(curCoef, curAlpha, curBeta);
+        if (dampingScale == DampingScale.IDENTITY && !warmStart) {
+            // lambda is relative to the size of alpha
+            double maxDiag = 0;
+            for (i = 0; i < numActive; i++) {
+                maxDiag = Math.max(maxDiag, curAlpha[i * numActive + i]);
+            }
+            lambda *= maxDiag;
+        }
+        StepControl steps = new StepControl();
+        steps.setup(lambdaUpdate, lambdaScalePerStep, deltaChiSquaredStop, maxExtraIterations,
+                relativeChiSquaredStop);
+        steps.start(startChiSq, lambda);
+        if (gradientStop > 0 && maxAbs(curBeta) <= gradientStop) {
+            reason = TerminationReason.GRADIENT;
+        }
+        if (reporting) {
+            for (FitListener listener : listeners) {
+                listener.fitStarted(this, curCoef, startChiSq);
+            }
+        }
 
-        do {
-            // calculate trial coefficients based on previous alpha and beta
-            // and current lambda.
+        // from here on, a cancel or deadline may stop a pass part way
+        interruptible = true;
+        try {
+            while (reason == TerminationReason.MAX_ITERATIONS) {
+                // calculate trial coefficients based on previous alpha and beta
+                // and current lambda.
 
-            // (multiply diagonals of alpha by (1+lambda) to form alphaPrime)
-            calcAlphaPrime(curAlpha, alphaPrime,lambda);
+                // (damp the diagonals of alpha to form alphaPrime, and solve the
+                // linear equation: AlphaPrime * DeltaCoef = Beta)
+                boolean marquardt = (dampingScale == DampingScale.MARQUARDT);
+                lambda = steps.lambda;
+                long solveStart = reporting ? System.nanoTime() : 0;
+                double[] stepAlpha = curAlpha, stepBeta = curBeta;
+                if (pinBounds(curCoef, curAlpha, curBeta)) {
+                    stepAlpha = boundAlpha;
+                    stepBeta = boundBeta;
+                }
+                if (!solver.factor(stepAlpha, marquardt ? 1.0 + lambda : 1.0, marquardt ? 0.0 : lambda)) {
+                    throw new RuntimeException("Matrix is singular.");
+                }
+                solver.solve(stepBeta, deltaCoef);
+                linearSolves++;
+                if (reporting) {
+                    solveNanos += System.nanoTime() - solveStart;
+                }
+                // apply DeltaCoef to form the coefficients to try.
+                System.arraycopy(curCoef, 0, trialCoef, 0, numCoef);
+                for (i = 0; i < numActive; i++) {
+                    trialCoef[activeCoef[i]] += deltaCoef[i];
+                }
+                boolean accelerated = !geodesicAcceleration
+                        || addGeodesicAcceleration(curCoef, trialCoef);
+                if (project(trialCoef)) {
+                    // the step actually taken is the projected one
+                    for (i = 0; i < numActive; i++) {
+                        deltaCoef[i] = trialCoef[activeCoef[i]] - curCoef[activeCoef[i]];
+                    }
+                }
             
-            // (solve the linear equation: AlphaPrime * DeltaCoef = Beta)
-            Matrix deltaCoef = alphaPrime.solve(curBeta);
-            // apply DeltaCoef to form the coefficients to try.
-            for (i = 0; i<numCoef; i++) {
-                trialCoef[i] = curCoef[i] + deltaCoef.get(i, 0);
-            }
+                // calculate a new chi-sq (and alpha, beta) based on the trial
+                // coefficients. In lazy mode, alpha and beta wait until we
+                // know the step is good.
+                double trialChiSq = steps.curChiSq;
+                if (!accelerated) {
+                    // acceleration too large compared to the step. Treat it
+                    // like a bad step without evaluating it.
+                } else if (lazyJacobian) {
+                    trialChiSq = calcChiSquared(trialCoef);
+                } else {
+                    trialChiSq = calcAlphaBetaChi(trialCoef, trialAlpha, trialBeta);
+                }
             
-            // calculate a new chi-sq (and alpha, beta) based on the trial coefficients
-            double trialChiSq = calcAlphaBetaChi(trialCoef, trialAlpha, trialBeta);
+                // the reduction in chi-sq predicted by the linear model,
+                // deltaCoef.(beta + lambda*D*deltaCoef)
+                double predicted = 0;
+                for (i = 0; i < numActive; i++) {
+                    double damping = marquardt ? curAlpha[i * numActive + i] : 1.0;
+                    predicted += deltaCoef[i] * (curBeta[i] + lambda * damping * deltaCoef[i]);
+                }
+                boolean goodStep = steps.isGood(trialChiSq, accelerated);
             
-            if (trialChiSq > curChiSq) {
-                if (debugStream != null)
-                    debugStream.println("## Bad step. Trying bigger leap.");
-                // --Bad step--
-                // increase lambda by a factor of 10 and try again with the
-                // old (current) alpha and beta
-                lambda /= lambdaScalePerStep;
-            } else {
-                if (debugStream != null)
-                    debugStream.println("## On the Golden Path.");
-                // --Good step--
-                // decrease lambda by a factor of 10 and update coefficients,
-                // alpha, and beta to the trial coefficients
-                lambda *= lambdaScalePerStep;
-                System.arraycopy(trialCoef, 0, curCoef, 0, numCoef);
-                Matrices.copyMatrix(trialAlpha, curAlpha);
-                Matrices.copyMatrix(trialBeta, curBeta);
-            }
-            curChiSq = trialChiSq;
-
-            // check to see if the chi-squared value has changed much
-            if (Math.abs(curChiSq - lastChiSq) < deltaChiSquaredStop) {
-                // we have reached the stop condition, 
-                // but allow for a few extra iterations
-                extraIterations++;
-            } else {
-                // we are not at the stop condition
-                // clear any extra iterations
-                extraIterations = 0;
-            }
+                if (reporting) {
+                    double norm = 0;
+                    for (i = 0; i < numCoef; i++) {
+                        double step = trialCoef[i] - curCoef[i];
+                        norm += step * step;
+                    }
+                    iterationInfo.stepNorm = Math.sqrt(norm);
+                }
+
+                if (!goodStep) {
+                    if (lazyJacobian && accelerated) {
+                        savedJacobianEvaluations += data.size();
+                    }
+                    // --Bad step--
+                    // increase lambda and try again with the old (current) alpha
+                    // and beta
+                    steps.reject();
+                } else {
+                    // --Good step--
+                    // decrease lambda and update coefficients, alpha, and beta
+                    // to the trial coefficients
+                    boolean relative = steps.accept(trialChiSq, predicted);
+                    if (lazyJacobian) {
+                        calcAlphaBetaChi(trialCoef, trialAlpha, trialBeta);
+                    }
+                    if (stepSizeStop > 0 && isSmallStep(curCoef, trialCoef)) {
+                        reason = TerminationReason.STEP_SIZE;
+                    }
+                    if (relative) {
+                        reason = TerminationReason.RELATIVE_CHI_SQUARED;
+                    }
+                    System.arraycopy(trialCoef, 0, curCoef, 0, numCoef);
+                    double[] swap = curAlpha;
+                    curAlpha = trialAlpha;
+                    trialAlpha = swap;
+                    swap = curBeta;
+                    curBeta = trialBeta;
+                    trialBeta = swap;
+                    if (gradientStop > 0 && maxAbs(curBeta) <= gradientStop) {
+                        reason = TerminationReason.GRADIENT;
+                    }
+                }
+                // check to see if the chi-squared value has changed much
+                boolean converged = steps.endIteration(trialChiSq, goodStep, accelerated);
+            
+                if (reporting) {
+                    iterationInfo.iteration = iterations;
+                    iterationInfo.extraIterations = steps.extraIterations;
+                    iterationInfo.chiSquared = steps.curChiSq;
+                    iterationInfo.lambda = lambda;
+                    iterationInfo.accepted = goodStep;
+                    iterationInfo.coef = curCoef;
+                    for (FitListener listener : listeners) {
+                        listener.iteration(this, iterationInfo);
+                    }
+                }
             
-            if (debugStream != null) {
-                debugStream.printf("Iteration: %d", iterations);
-                if (extraIterations > 0)
-                    debugStream.printf(" (%d EXTRA)", extraIterations);
-                debugStream.printf(" Chi-Squared: %11.10g%n", curChiSq);
-                for (i=0; i<numCoef; i++) {
-                    String cname = "coef[" + i + "]";
-                    debugStream.printf("%10s ", cname);
+                iterations++;
+                if (converged) {
+                    reason = TerminationReason.DELTA_CHI_SQUARED;
+                    break;
                 }
-                debugStream.println();
-                for (i=0; i<numCoef; i++) {
-                    debugStream.printf("%10.8g ", curCoef[i]);
+                if (iterations >= maxIterations) {
+                    break;
                 }
-                debugStream.println();
+                checkInterrupted();
             }
-            
-            lastChiSq = curChiSq;
-            iterations++;
-        } while (iterations < maxTotalIterations && extraIterations < maxExtraIterations);
+        } catch (FitInterrupted ex) {
+            // keep the last accepted coefficients
+            reason = cancelRequested ? TerminationReason.CANCELLED : TerminationReason.DEADLINE;
+        } finally {
+            interruptible = false;
+        }
         
-        if (debugStream != null) {
-            debugStream.printf("--- Stopped after %d iterations ---%n", (iterations-1));
+        finalTermination = reason;
+        finalChiSquared = steps.coefChiSq;
+        finalIterations = iterations - 1;
+        finalLambda = steps.lambda;
+        finalCoef = Arrays.copyOf(curCoef, numCoef);
+        // Factor the final alpha matrix. The covariance is its inverse, but
+        // is only computed if asked for.
+        finalFactor.factor(curAlpha);
+        if (reporting) {
+            for (FitListener listener : listeners) {
+                listener.fitFinished(this);
+            }
         }
-
-        // Compute the covariance matrix as the inverse of the final alpha matrix
-        finalCovariance = curAlpha.inverse();
         return curCoef;
     }
 
     /**
-     * Get the covariance of the last estimated coefficients.
+     * Get the Chi-Squared of the last estimated coefficients.
+     * @return Chi-Squared, or {@code NaN} if {@link #estimate} has not yet
+     *          been called.
+     */
+    public double estimatedChiSquared() {
+        return finalChiSquared;
+    }
+
+    /**
+     * Get the number of iterations used by the last {@link #estimate}.
+     * @return number of iterations
+     */
+    public int estimatedIterations() {
+        return finalIterations;
+    }
+
+    /**
+     * Get the value of lambda at the end of the last {@link #estimate}.
+     * @return the final lambda, or {@code NaN} if {@link #estimate} has not
+     *          yet been called.
+     */
+    public double estimatedLambda() {
+        return finalLambda;
+    }
+
+    /**
+     * Get the reason the last {@link #estimate} stopped.
+     * @return the termination reason, or {@code null} if {@link #estimate}
+     *          has not yet been called.
+     */
+    public TerminationReason estimatedTerminationReason() {
+        return finalTermination;
+    }
+
+    /**
+     * Get the number of value-only function evaluations (one per data point
+     * per pass) used by the last {@link #estimate}.
+     * @return number of value-only evaluations
+     */
+    public long getValueEvaluations() {
+        return valueEvaluations;
+    }
+
+    /**
+     * Get the number of function evaluations with derivatives (one per data
+     * point per pass) used by the last {@link #estimate}.
+     * @return number of value and derivative evaluations
+     */
+    public long getJacobianEvaluations() {
+        return jacobianEvaluations;
+    }
+
+    /**
+     * Get the number of linear systems solved by the last {@link #estimate}:
+     * one per iteration, plus one per geodesic acceleration.
+     * @return number of linear solves
+     */
+    public long getLinearSolves() {
+        return linearSolves;
+    }
+
+    /**
+     * Get the time the last {@link #estimate} spent computing alpha, beta and
+     * Chi-Squared. Only measured while a {@link FitListener} is attached.
+     * @return time in nanoseconds
+     */
+    public long getAlphaBetaNanos() {
+        return alphaBetaNanos;
+    }
+
+    /**
+     * Get the time the last {@link #estimate} spent computing Chi-Squared
+     * alone for trial steps. Only measured while a {@link FitListener} is
+     * attached.
+     * @return time in nanoseconds
+     */
+    public long getChiSquaredNanos() {
+        return chiSquaredNanos;
+    }
+
+    /**
+     * Get the time the last {@link #estimate} spent factoring and solving
+     * the damped normal equations. Only measured while a {@link FitListener}
+     * is attached.
+     * @return time in nanoseconds
+     */
+    public long getSolveNanos() {
+        return solveNanos;
+    }
+
+    /**
+     * Is the lazy Jacobian strategy in use?
+     * @return {@code true} if trial steps are tested with values alone
+     * @see #setupLazyJacobian
+     */
+    public boolean isLazyJacobian() {
+        return lazyJacobian;
+    }
+
+    /**
+     * Get the number of derivative evaluations the last {@link #estimate}
+     * skipped by testing rejected steps with function values alone.
+     * @return number of skipped derivative evaluations
+     * @see #setupLazyJacobian
+     */
+    public long getSavedJacobianEvaluations() {
+        return savedJacobianEvaluations;
+    }
+
+    /**
+     * Get the covariance of the last estimated coefficients. The covariance
+     * is computed from the final factorization the first time it is asked for.
      * @return the covariance matrix, or {@code null} if no {@link #estimate}
      *          has not yet been called.
+     * @throws java.lang.RuntimeException if the final alpha matrix is singular.
      */
-    public double[][] estimatedCovariance() {
-        return finalCovariance.getArray();
+    public double[][] estimatedCovariance() throws RuntimeException {
+        if (finalCovariance == null && finalTermination != null) {
+            int numActive = finalFactor.getDimension();
+            double[] inverse = new double[numActive * numActive];
+            finalFactor.inverse(inverse);
+            // fixed coefficients have no variance
+            int numCoef = finalCoef.length;
+            finalCovariance = new double[numCoef][numCoef];
+            for (int row = 0; row < numActive; row++) {
+                double[] out = finalCovariance[activeCoef[row]];
+                for (int col = 0; col < numActive; col++) {
+                    out[activeCoef[col]] = inverse[row * numActive + col];
+                }
+            }
+        }
+        return finalCovariance;
     }
     
     /**
      * Internal function to calculate alpha, beta, and Chi-Squred
      */
-    protected double calcAlphaBetaChi(double[] coef, Matrix alpha, Matrix beta) {
-        int row, col, numCoef = coef.length;
-        double residual, weightSq;
-        double[][] alphaArray = alpha.getArray();
-        double[][] betaArray = beta.getArray();
-        double chiSq = 0;
-        Matrices.clearMatrix(alpha);
-        Matrices.clearMatrix(beta);
-        // go through each data point and calculate the function and its
-        // derivatives with respect to each coefficient at that point.
-        for (Datum d : data) {
-            EstimateFunction.Estimate est = function.getEstimate(d.point, coef);
-            residual = d.value - est.estimate;
-            weightSq = d.weight * d.weight;
-            chiSq += residual * residual / weightSq;
-            // calculate beta (a column vector), the gradient of the function
-            // with respect to each coefficient
-            for (row = 0; row < numCoef; row++) {
-                betaArray[row][0] += residual * est.derivatives[row] / weightSq;
+    protected double calcAlphaBetaChi(double[] coef, double[] alpha, double[] beta) {
+        jacobianEvaluations += data.size();
+        long start = (listeners.length > 0) ? System.nanoTime() : 0;
+        AlphaBetaChi sums = accumulate(coef, Pass.ALPHA_BETA_CHI);
+        sums.copyTo(alpha, beta);
+        if (listeners.length > 0) {
+            alphaBetaNanos += System.nanoTime() - start;
+        }
+        return sums.chiSq;
+    }
+
+    /**
+     * Internal function to calculate Chi-Squared alone
+     */
+    protected double calcChiSquared(double[] coef) {
+        valueEvaluations += data.size();
+        long start = (listeners.length > 0) ? System.nanoTime() : 0;
+        double chiSq = accumulate(coef, Pass.CHI_SQUARED).chiSq;
+        if (listeners.length > 0) {
+            chiSquaredNanos += System.nanoTime() - start;
+        }
+        return chiSq;
+    }
+
+    /**
+     * Internal function to add half the geodesic acceleration to the trial
+     * coefficients. Uses the damped factorization of the current step.
+     * @return {@code false} if the acceleration is too large compared to
+     *          the step, and the step should be rejected.
+     */
+    protected boolean addGeodesicAcceleration(double[] curCoef, double[] trialCoef) {
+        int numActive = activeCoef.length;
+        for (int i = 0; i < numActive; i++) {
+            fullDelta[activeCoef[i]] = deltaCoef[i];
+        }
+        for (int i = 0; i < curCoef.length; i++) {
+            shiftedCoef[i] = curCoef[i] + geodesicStep * fullDelta[i];
+        }
+        jacobianEvaluations += data.size();
+        valueEvaluations += data.size();
+        AlphaBetaChi sums = accumulate(curCoef, Pass.GEODESIC);
+        solver.solve(sums.beta, accelCoef);
+        linearSolves++;
+        double accelNorm = 0, deltaNorm = 0;
+        for (int i = 0; i < numActive; i++) {
+            accelNorm += accelCoef[i] * accelCoef[i];
+            deltaNorm += deltaCoef[i] * deltaCoef[i];
+        }
+        if (accelNorm > geodesicMaxRatio * geodesicMaxRatio * deltaNorm) {
+            return false;
+        }
+        for (int i = 0; i < numActive; i++) {
+            trialCoef[activeCoef[i]] -= 0.5 * accelCoef[i];
+        }
+        return true;
+    }
+
+    /**
+     * Take the coefficients that sit on a bound, and that the gradient would
+     * push outside it, out of this step: their rows and columns of alpha
+     * become those of the identity and their beta zero, so the step leaves
+     * them where they are and is solved over the remaining coefficients.
+     * @return {@code true} if any coefficient was pinned, in which case the
+     *          step should be solved from {@code boundAlpha} and
+     *          {@code boundBeta}.
+     */
+    protected boolean pinBounds(double[] curCoef, double[] alpha, double[] beta) {
+        if (lowerBounds == null && upperBounds == null) {
+            return false;
+        }
+        int numActive = activeCoef.length;
+        boolean pinned = false;
+        for (int r = 0; r < numActive; r++) {
+            int c = activeCoef[r];
+            // beta points downhill in Chi-Squared
+            boolean atLower = lowerBounds != null && curCoef[c] <= lowerBounds[c] && beta[r] < 0;
+            boolean atUpper = upperBounds != null && curCoef[c] >= upperBounds[c] && beta[r] > 0;
+            if (!atLower && !atUpper) {
+                continue;
             }
-            // calculate alpha, the [approximate] Hessian matrix
-            for (row = 0; row < numCoef; row++) {
-                for (col = 0; col < numCoef; col++) {
-                    alphaArray[row][col] += est.derivatives[row] 
-                            * est.derivatives[col] / weightSq;
+            if (!pinned) {
+                if (boundAlpha == null || boundAlpha.length != alpha.length) {
+                    boundAlpha = new double[alpha.length];
+                    boundBeta = new double[numActive];
                 }
+                System.arraycopy(alpha, 0, boundAlpha, 0, alpha.length);
+                System.arraycopy(beta, 0, boundBeta, 0, numActive);
+                pinned = true;
+            }
+            for (int k = 0; k < numActive; k++) {
+                boundAlpha[r * numActive + k] = 0;
+                boundAlpha[k * numActive + r] = 0;
             }
+            boundAlpha[r * numActive + r] = 1;
+            boundBeta[r] = 0;
         }
-        return chiSq;
+        return pinned;
     }
-    
+
+    /**
+     * Clamp coefficients into their bounds.
+     * @return {@code true} if any coefficient was moved.
+     */
+    protected boolean project(double[] coef) {
+        boolean moved = false;
+        for (int i = 0; i < coef.length; i++) {
+            if (lowerBounds != null && coef[i] < lowerBounds[i]) {
+                coef[i] = lowerBounds[i];
+                moved = true;
+            } else if (upperBounds != null && coef[i] > upperBounds[i]) {
+                coef[i] = upperBounds[i];
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Did a step change every coefficient by less than the step tolerance?
+     */
+    protected boolean isSmallStep(double[] curCoef, double[] trialCoef) {
+        for (int i = 0; i < curCoef.length; i++) {
+            double step = Math.abs(trialCoef[i] - curCoef[i]);
+            if (step > stepSizeStop * (Math.abs(curCoef[i]) + stepSizeStop)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double maxAbs(double[] v) {
+        double max = 0;
+        for (int i = 0; i < v.length; i++) {
+            max = Math.max(max, Math.abs(v[i]));
+        }
+        return max;
+    }
+
     /**
-     * Internal function to calculate alphaPrime from alpha and lambda
+     * Internal function to make one pass over all data points, in parallel
+     * chunks if there are enough points.
      */
-    protected void calcAlphaPrime(Matrix alpha, Matrix alphaPrime, double lambda) {
-        Matrices.copyMatrix(alpha, alphaPrime);
-        double[][] alphaPrimeArray = alphaPrime.getArray();
-        int numCoef = alpha.getRowDimension();
-        double onePlusLambda = 1.0 + lambda;
-        // Adjust the diagonals of a by (1 + lambda)
-        for (int diag=0; diag<numCoef; diag++) {
-            alphaPrimeArray[diag][diag] *= onePlusLambda;
+    protected AlphaBetaChi accumulate(double[] coef, Pass pass) {
+        long size = data.size();
+        totals.clear();
+        if (size < parallelThreshold) {
+            accumulateRange(totals, pass, coef, 0, size);
+            return totals;
+        }
+        long longChunks = (size + parallelChunkSize - 1) / parallelChunkSize;
+        if (longChunks > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many parallel chunks; increase the chunk size");
+        }
+        int numChunks = (int) longChunks;
+        if (chunkTasks == null || chunkTasks.length != numChunks) {
+            chunkTasks = new ChunkTask[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                chunkTasks[c] = new ChunkTask(new AlphaBetaChi(totals.numFunctionCoef, totals.active,
+                        data.getPointDimension()));
+            }
+            rootTask = new RootTask();
+        }
+        if (chunkTasks[0].sums.compensated != totals.compensated) {
+            for (ChunkTask task : chunkTasks) {
+                task.sums.setCompensated(totals.compensated);
+            }
+        }
+        for (int c = 0; c < numChunks; c++) {
+            ChunkTask task = chunkTasks[c];
+            task.coef = coef;
+            task.pass = pass;
+            task.from = (long) c * parallelChunkSize;
+            task.to = Math.min(size, task.from + parallelChunkSize);
+            task.reinitialize();
+        }
+        rootTask.reinitialize();
+        ForkJoinPool pool = (parallelPool != null) ? parallelPool : ForkJoinPool.commonPool();
+        pool.invoke(rootTask);
+        // merge the partial sums in chunk order so the result does not
+        // depend on which worker finished first
+        for (int c = 0; c < numChunks; c++) {
+            totals.add(chunkTasks[c].sums);
+        }
+        return totals;
+    }
+
+    /**
+     * Internal function to make one kind of pass over a range of data points.
+     */
+    protected void accumulateRange(AlphaBetaChi sums, Pass pass, double[] coef, long from, long to) {
+        if (interruptible && to - from > INTERRUPT_CHECK_POINTS) {
+            // split the range so a long pass can be stopped part way
+            for (long start = from; start < to; start += INTERRUPT_CHECK_POINTS) {
+                checkInterrupted();
+                accumulateRange(sums, pass, coef, start, Math.min(to, start + INTERRUPT_CHECK_POINTS));
+            }
+            return;
+        }
+        switch (pass) {
+            case CHI_SQUARED:
+                sums.accumulateChiSq(function, data, coef, from, to);
+                break;
+            case GEODESIC:
+                sums.accumulateGeodesic(function, data, coef, fullDelta, shiftedCoef,
+                        geodesicStep, from, to);
+                break;
+            default:
+                sums.accumulate(function, data, coef, from, to);
+        }
+    }
+
+    /**
+     * Stop the fit if it has been cancelled or its deadline has passed. Cheap
+     * enough to call often: a volatile read, plus a clock read if there is a
+     * deadline.
+     * @throws FitInterrupted to unwind the running iteration
+     */
+    protected void checkInterrupted() {
+        if (cancelRequested || (hasDeadline && System.nanoTime() - deadline >= 0)) {
+            throw new FitInterrupted();
+        }
+    }
+
+    /**
+     * Unwinds an iteration stopped by {@link #cancel} or a deadline.
+     */
+    protected static class FitInterrupted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public FitInterrupted() {
+            super("Fit interrupted", null, false, false);
+        }
+    }
+
+    /**
+     * Sums alpha, beta, and Chi-Squared over one chunk of the data.
+     */
+    protected class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final AlphaBetaChi sums;
+        double[] coef;
+        Pass pass;
+        long from, to;
+
+        ChunkTask(AlphaBetaChi sums) {
+            this.sums = sums;
+        }
+
+        @Override
+        protected void compute() {
+            sums.clear();
+            accumulateRange(sums, pass, coef, from, to);
         }
     }
 
     /**
-     * Internal class used to store data.
+     * Forks all of the chunk tasks and waits for them to finish.
      */
-    protected static class Datum {
-        protected double[] point;
-        protected double value;
-        protected double weight;
+    protected class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        protected Datum(double[] point, double value, double weight) {
-            this.point = point;
-            this.value = value;
-            this.weight = weight;
+        @Override
+        protected void compute() {
+            invokeAll(chunkTasks);
         }
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A sum of Lorentzian (Cauchy) peaks, optionally on a constant background:
+ * <pre>
+ *   f(x) = sum_k A_k / (1 + ((x - c_k) / g_k)^2) [+ B]
+ * </pre>
+ * where {@code g_k} is the half width at half maximum. The amplitude, center
+ * and half width of each peak are stored in consecutive coefficients,
+ * followed by the background if there is one. The peak shape is computed
+ * once per point and component and shared by the value and all three
+ * derivatives.
+ *
+ * @author jrkuhn
+ */
+public class LorentzianSum implements BlockEstimateFunction {
+    protected final int numComponents;
+    protected final boolean background;
+    protected final int numCoef;
+
+    /**
+     * Create a sum of Lorentzians with no background.
+     * @param numComponents number of peaks
+     */
+    public LorentzianSum(int numComponents) {
+        this(numComponents, false);
+    }
+
+    /**
+     * Create a sum of Lorentzians.
+     * @param numComponents number of peaks
+     * @param background {@code true} to add a constant background coefficient
+     */
+    public LorentzianSum(int numComponents, boolean background) {
+        if (numComponents < 1) {
+            throw new RuntimeException("Need at least one component");
+        }
+        this.numComponents = numComponents;
+        this.background = background;
+        numCoef = 3 * numComponents + (background ? 1 : 0);
+    }
+
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getPointDimension() {
+        return 1;
+    }
+
+    public int getNumCoef() {
+        return numCoef;
+    }
+
+    public String getCoefName(int index) {
+        if (background && index == numCoef - 1) {
+            return "background";
+        }
+        int k = index / 3 + 1;
+        switch (index % 3) {
+            case 0: return "amplitude" + k;
+            case 1: return "center" + k;
+            default: return "halfWidth" + k;
+        }
+    }
+
+    public Estimate getEstimate(double[] point, double[] coef) {
+        Estimate result = new Estimate(numCoef);
+        getEstimate(point, coef, result);
+        return result;
+    }
+
+    @Override
+    public void getEstimate(double[] point, double[] coef, Estimate result) {
+        double x = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        double[] dyda = result.derivatives;
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double invWidth = 1.0 / coef[k + 2];
+            double u = (x - coef[k + 1]) * invWidth;
+            double shape = 1.0 / (1.0 + u * u);
+            // d shape / du = -2 u shape^2
+            double fac = coef[k] * 2.0 * u * shape * shape * invWidth;
+            y += coef[k] * shape;
+            dyda[k] = shape;
+            dyda[k + 1] = fac;
+            dyda[k + 2] = fac * u;
+        }
+        if (background) {
+            dyda[numCoef - 1] = 1.0;
+        }
+        result.estimate = y;
+    }
+
+    @Override
+    public double getValue(double[] point, double[] coef) {
+        double x = point[0];
+        double y = background ? coef[numCoef - 1] : 0;
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double u = (x - coef[k + 1]) / coef[k + 2];
+            y += coef[k] / (1.0 + u * u);
+        }
+        return y;
+    }
+
+    public void getEstimates(double[] points, int numPoints, double[] coef,
+            double[] values, double[] jacobian) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double amp = coef[k], center = coef[k + 1], invWidth = 1.0 / coef[k + 2];
+            double ampScale = amp * 2.0 * invWidth;
+            for (int i = 0, offset = k; i < numPoints; i++, offset += numCoef) {
+                double u = (points[i] - center) * invWidth;
+                double shape = 1.0 / (1.0 + u * u);
+                double fac = ampScale * u * shape * shape;
+                values[i] += amp * shape;
+                jacobian[offset] = shape;
+                jacobian[offset + 1] = fac;
+                jacobian[offset + 2] = fac * u;
+            }
+        }
+        if (background) {
+            for (int i = 0, offset = numCoef - 1; i < numPoints; i++, offset += numCoef) {
+                jacobian[offset] = 1.0;
+            }
+        }
+    }
+
+    @Override
+    public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        double base = background ? coef[numCoef - 1] : 0;
+        for (int i = 0; i < numPoints; i++) {
+            values[i] = base;
+        }
+        for (int k = 0; k < 3 * numComponents; k += 3) {
+            double amp = coef[k], center = coef[k + 1], invWidth = 1.0 / coef[k + 2];
+            for (int i = 0; i < numPoints; i++) {
+                double u = (points[i] - center) * invWidth;
+                values[i] += amp / (1.0 + u * u);
+            }
+        }
+    }
+}
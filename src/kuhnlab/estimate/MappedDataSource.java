@@ -0,0 +1,136 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Data points read straight from a memory-mapped binary file, so datasets
+ * far larger than the heap can be fitted. The file is mapped read-only and
+ * the operating system pages it in as the estimator streams over it; no
+ * point data is copied onto the heap beyond the estimator's small block
+ * buffers.
+ * <p>
+ * Files are written by {@link MappedDataWriter}. After a
+ * {@value #HEADER_BYTES} byte header, each point is a fixed-size
+ * little-endian record of its coordinates, its value and its weight, all
+ * {@code double}. Because records have a fixed size, each chunk of the
+ * parallel accumulation reads its own contiguous byte range of the file.
+ * <p>
+ * A file larger than 2 GB is mapped as several segments, each holding a
+ * whole number of records. Reads only use absolute positions, so a source
+ * can be read from many threads at once.
+ *
+ * @author jrkuhn
+ */
+public class MappedDataSource implements DataSource, Closeable {
+    /** First four bytes of a data file, "KLMD". */
+    public static final int MAGIC = 0x444D4C4B;
+    public static final int VERSION = 1;
+    /**
+     * Header layout: int magic, int version, int point dimension, int
+     * (reserved), long number of points, long (reserved).
+     */
+    public static final int HEADER_BYTES = 32;
+
+    protected final FileChannel channel;
+    protected final int dimension;
+    protected final long size;
+    /** Bytes in one record, {@code (dimension + 2) * 8}. */
+    protected final int recordBytes;
+    protected final long recordsPerSegment;
+    protected final MappedByteBuffer[] segments;
+
+    /**
+     * Map a data file.
+     * @param file file written by {@link MappedDataWriter}
+     * @throws java.io.IOException if the file cannot be read or is not a
+     *          valid data file
+     */
+    public MappedDataSource(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Data file " + file + " is too short for a header");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a data file");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported data file version " + header.getInt(4));
+            }
+            dimension = header.getInt(8);
+            size = header.getLong(16);
+            recordBytes = recordBytes(dimension);
+            if (dimension < 1 || size < 0 || channel.size() < HEADER_BYTES + size * recordBytes) {
+                throw new IOException("Data file " + file + " is truncated or corrupt");
+            }
+            recordsPerSegment = Integer.MAX_VALUE / recordBytes;
+            int numSegments = (int) ((size + recordsPerSegment - 1) / recordsPerSegment);
+            segments = new MappedByteBuffer[numSegments];
+            for (int s = 0; s < numSegments; s++) {
+                long first = s * recordsPerSegment;
+                long count = Math.min(recordsPerSegment, size - first);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + first * recordBytes, count * recordBytes);
+                segments[s].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Number of bytes in the record of a point.
+     * @param dimension number of coordinates per point
+     * @return record size in bytes
+     */
+    public static int recordBytes(int dimension) {
+        return (dimension + 2) * 8;
+    }
+
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void read(long from, int count, double[] points, double[] values, double[] weights) {
+        int dim = dimension, p = 0;
+        long index = from;
+        for (int i = 0; i < count; i++, index++) {
+            int seg = (int) (index / recordsPerSegment);
+            int pos = (int) (index - seg * recordsPerSegment) * recordBytes;
+            MappedByteBuffer buffer = segments[seg];
+            for (int d = 0; d < dim; d++, pos += 8) {
+                points[p++] = buffer.getDouble(pos);
+            }
+            values[i] = buffer.getDouble(pos);
+            weights[i] = buffer.getDouble(pos + 8);
+        }
+    }
+
+    /**
+     * Close the underlying file. The mapping itself is released when the
+     * source is garbage collected.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
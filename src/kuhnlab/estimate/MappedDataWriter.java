@@ -0,0 +1,171 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes data points to a binary file that can be fitted out-of-core with
+ * {@link MappedDataSource}. Points are appended through a direct buffer, and
+ * the point count in the header is filled in when the writer is closed.
+ *
+ * @author jrkuhn
+ */
+public class MappedDataWriter implements Closeable {
+    protected static final int BUFFER_BYTES = 1 << 20;
+
+    protected final FileChannel channel;
+    protected final int dimension;
+    protected final ByteBuffer buffer;
+    protected long size;
+
+    /**
+     * Create (or replace) a data file.
+     * @param file file to write
+     * @param dimension number of coordinates per point
+     * @throws java.io.IOException if the file cannot be created
+     */
+    public MappedDataWriter(File file, int dimension) throws IOException {
+        if (dimension < 1) {
+            throw new RuntimeException("Point dimension must be positive");
+        }
+        this.dimension = dimension;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        int recordBytes = MappedDataSource.recordBytes(dimension);
+        buffer = ByteBuffer.allocateDirect(Math.max(1, BUFFER_BYTES / recordBytes) * recordBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        size = 0;
+        // leave room for the header, written on close
+        channel.position(MappedDataSource.HEADER_BYTES);
+    }
+
+    /**
+     * Write a single point.
+     * @param point coordinates of the point
+     * @param value value at this point
+     * @param weight estimated standard deviation of the value
+     * @throws java.lang.RuntimeException if the point has too few coordinates
+     */
+    public void add(double[] point, double value, double weight) throws IOException {
+        if (point.length < dimension) {
+            throw new RuntimeException("Point has " + point.length +
+                    " coordinates, expected " + dimension);
+        }
+        if (buffer.remaining() < MappedDataSource.recordBytes(dimension)) {
+            flush();
+        }
+        for (int d = 0; d < dimension; d++) {
+            buffer.putDouble(point[d]);
+        }
+        buffer.putDouble(value);
+        buffer.putDouble(weight);
+        size++;
+    }
+
+    /**
+     * Write many points from packed arrays.
+     * @param xs packed coordinates, {@code dimension} values per point
+     * @param ys values at each point
+     * @param sigmas estimated standard deviation of each value
+     * @throws java.lang.RuntimeException if the array lengths do not match
+     */
+    public void addAll(double[] xs, double[] ys, double[] sigmas) throws IOException {
+        addAll(xs, ys, sigmas, ys.length);
+    }
+
+    protected void addAll(double[] xs, double[] ys, double[] sigmas, int count) throws IOException {
+        // check before writing anything, so a bad call cannot leave a
+        // partial record in the buffer
+        if (count < 0 || count > ys.length || count > sigmas.length) {
+            throw new RuntimeException("Point count " + count + " exceeds the value or sigma arrays");
+        }
+        if ((long) count * dimension > xs.length) {
+            throw new RuntimeException("Packed point array of length " + xs.length +
+                    " is too short for " + count + " points of dimension " + dimension);
+        }
+        int recordBytes = MappedDataSource.recordBytes(dimension);
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < recordBytes) {
+                flush();
+            }
+            for (int d = 0; d < dimension; d++) {
+                buffer.putDouble(xs[p++]);
+            }
+            buffer.putDouble(ys[i]);
+            buffer.putDouble(sigmas[i]);
+        }
+        size += count;
+    }
+
+    /**
+     * Write every point of another data source.
+     * @param source points to copy
+     */
+    public void addAll(DataSource source) throws IOException {
+        if (source.getPointDimension() != dimension) {
+            throw new RuntimeException("Data source dimension " + source.getPointDimension() +
+                    " does not match file dimension " + dimension);
+        }
+        int block = AlphaBetaChi.BLOCK_SIZE;
+        double[] xs = new double[block * dimension];
+        double[] ys = new double[block];
+        double[] sigmas = new double[block];
+        long total = source.size();
+        for (long start = 0; start < total; start += block) {
+            int count = (int) Math.min(block, total - start);
+            source.read(start, count, xs, ys, sigmas);
+            addAll(xs, ys, sigmas, count);
+        }
+    }
+
+    /**
+     * Get the number of points written so far.
+     * @return number of points
+     */
+    public long size() {
+        return size;
+    }
+
+    protected void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flush the remaining points, write the header, and close the file.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(MappedDataSource.HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MappedDataSource.MAGIC);
+            header.putInt(MappedDataSource.VERSION);
+            header.putInt(dimension);
+            header.putInt(0);
+            header.putLong(size);
+            header.putLong(0);
+            header.flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += channel.write(header, pos);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
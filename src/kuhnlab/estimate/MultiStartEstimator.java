@@ -0,0 +1,415 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fits one dataset from many initial guesses at once and keeps the best
+ * result. Useful for multi-component models, which often converge to a poor
+ * local minimum from a single guess.
+ * <p>
+ * Starts run concurrently on the threads of a {@link ForkJoinPool}. Every
+ * worker has its own {@link LevenbergMarquardtEstimator} session, copied from
+ * a template, but all sessions read the template's {@link DataSource}, so the
+ * data is never copied. Starts may be given explicitly or generated at
+ * random or by Latin hypercube sampling within bounds.
+ * <p>
+ * With {@link #setupPruning}, every start first runs for a few iterations.
+ * Starts whose Chi-Squared then trails the best by more than a margin are
+ * abandoned, and only the rest are run to convergence, warm-started from
+ * where they stopped. Either way, each start runs at most the template's
+ * {@link LevenbergMarquardtEstimator#setupMaximumIterations maximum
+ * iterations} in total, as counted by
+ * {@link LevenbergMarquardtEstimator#estimatedIterations}.
+ * <p>
+ * The model is called from several threads at once and must be thread-safe.
+ * A MultiStartEstimator itself runs one search at a time.
+ *
+ * @author jrkuhn
+ */
+public class MultiStartEstimator {
+    protected LevenbergMarquardtEstimator template;
+    protected ForkJoinPool pool;
+    protected Random random = new Random();
+    protected int pruneIterations = 0;
+    protected double pruneMargin = Double.POSITIVE_INFINITY;
+
+    /** Worker sessions kept between searches. */
+    protected Worker[] workers;
+
+    /**
+     * The outcome of one start.
+     */
+    public static class Start {
+        /** Index of the start in the order the starts were given or generated. */
+        public final int index;
+        /** Initial guess. */
+        public final double[] guess;
+        /** Estimated coefficients, the coefficients when abandoned, or {@code NaN} if failed. */
+        public double[] coef;
+        /** Chi-Squared of {@link #coef}. {@code NaN} if the fit failed. */
+        public double chiSquared = Double.NaN;
+        /** Total number of iterations used. */
+        public int iterations;
+        /**
+         * Why the fit stopped, or {@code null} if it was abandoned or failed.
+         * If resuming a survivor of the pruning iterations threw, the start
+         * keeps its first stage result, and this is
+         * {@link LevenbergMarquardtEstimator.TerminationReason#MAX_ITERATIONS}.
+         */
+        public LevenbergMarquardtEstimator.TerminationReason termination;
+        /** {@code true} if the start was abandoned after the pruning iterations. */
+        public boolean pruned;
+        /**
+         * {@code true} if the fit threw an exception (e.g. singular alpha)
+         * before it had any result.
+         */
+        public boolean failed;
+        /** Damping at the end of the first stage, for warm-starting the second. */
+        double lambda;
+
+        Start(int index, double[] guess) {
+            this.index = index;
+            this.guess = guess;
+        }
+    }
+
+    /**
+     * Results of a multi-start search.
+     */
+    public static class Result {
+        /**
+         * Every start, ranked: converged starts by increasing Chi-Squared,
+         * then pruned starts by increasing Chi-Squared, then failed starts.
+         */
+        public final Start[] ranked;
+
+        public Result(Start[] ranked) {
+            this.ranked = ranked;
+        }
+
+        /**
+         * Get the best start.
+         * @return the start with the lowest Chi-Squared, or {@code null} if
+         *          every start failed.
+         */
+        public Start best() {
+            return (ranked.length == 0 || ranked[0].failed) ? null : ranked[0];
+        }
+
+        /**
+         * Get the coefficients of the best start.
+         * @return the coefficients, or {@code null} if every start failed.
+         */
+        public double[] bestCoef() {
+            Start best = best();
+            return (best == null) ? null : best.coef;
+        }
+    }
+
+    /**
+     * Create a multi-start estimator for the data and settings of a template.
+     * @param template estimator to copy the function, settings (lambda,
+     *          stop conditions, bounds, etc.) and data source from. Settings
+     *          are read at the start of every search, and points added to
+     *          the template after this call are seen by later searches.
+     */
+    public MultiStartEstimator(LevenbergMarquardtEstimator template) {
+        this.template = template;
+        this.pool = null;
+        this.workers = null;
+    }
+
+    /**
+     * Set the pool used to run the starts.
+     * @param pool the pool to use, or {@code null} for the
+     *          {@link ForkJoinPool#commonPool() common pool}.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        this.workers = null;
+    }
+
+    /**
+     * Seed the generator of random and Latin hypercube starts, for
+     * repeatable searches.
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Abandon starts that are doing badly.
+     * @param iterations number of iterations every start runs before being
+     *          compared. Use 0 to disable pruning (the default).
+     * @param margin a start is abandoned if its Chi-Squared is larger than
+     *          {@code (1 + margin)} times the best Chi-Squared at that point.
+     */
+    public void setupPruning(int iterations, double margin) {
+        if (iterations < 0 || !(margin >= 0)) {
+            throw new RuntimeException("Pruning iterations and margin must not be negative");
+        }
+        this.pruneIterations = iterations;
+        this.pruneMargin = margin;
+    }
+
+    /**
+     * Fit from starts drawn uniformly at random within bounds.
+     * @param numStarts number of starts
+     * @param lower lower bound of each coefficient
+     * @param upper upper bound of each coefficient
+     * @return the ranked results
+     */
+    public Result estimateRandom(int numStarts, double[] lower, double[] upper) {
+        return estimate(randomStarts(numStarts, lower, upper, random));
+    }
+
+    /**
+     * Fit from starts drawn by Latin hypercube sampling within bounds, so
+     * the starts cover the range of every coefficient evenly.
+     * @param numStarts number of starts
+     * @param lower lower bound of each coefficient
+     * @param upper upper bound of each coefficient
+     * @return the ranked results
+     */
+    public Result estimateLatinHypercube(int numStarts, double[] lower, double[] upper) {
+        return estimate(latinHypercubeStarts(numStarts, lower, upper, random));
+    }
+
+    /**
+     * Fit from the given starts.
+     * @param guesses initial guess of each start
+     * @return the ranked results
+     * @throws java.lang.RuntimeException if a guess has the wrong number of
+     *          coefficients
+     */
+    public Result estimate(double[][] guesses) throws RuntimeException {
+        int numCoef = template.getFunction().getNumCoef();
+        Start[] starts = new Start[guesses.length];
+        for (int s = 0; s < guesses.length; s++) {
+            if (guesses[s].length != numCoef) {
+                throw new RuntimeException("Start " + s + " has " + guesses[s].length +
+                        " coefficients, expected " + numCoef);
+            }
+            starts[s] = new Start(s, guesses[s].clone());
+        }
+        int maxIterations = template.maxTotalIterations;
+        boolean pruning = pruneIterations > 0 && pruneIterations < maxIterations;
+        run(starts, pruning ? pruneIterations : maxIterations, false);
+
+        if (pruning) {
+            double best = Double.POSITIVE_INFINITY;
+            for (Start start : starts) {
+                if (!start.failed) {
+                    best = Math.min(best, start.chiSquared);
+                }
+            }
+            double limit = best * (1 + pruneMargin);
+            int numSurvivors = 0;
+            Start[] survivors = new Start[starts.length];
+            for (Start start : starts) {
+                if (start.failed || start.termination != LevenbergMarquardtEstimator.TerminationReason.MAX_ITERATIONS) {
+                    // failed or already converged
+                } else if (start.chiSquared > limit) {
+                    start.pruned = true;
+                    start.termination = null;
+                } else {
+                    survivors[numSurvivors++] = start;
+                }
+            }
+            // survivors get what is left of the total
+            run(Arrays.copyOf(survivors, numSurvivors), maxIterations, true);
+        }
+
+        Start[] ranked = starts.clone();
+        Arrays.sort(ranked, new Comparator<Start>() {
+            public int compare(Start a, Start b) {
+                int c = Integer.compare(rank(a), rank(b));
+                return (c != 0) ? c : Double.compare(a.chiSquared, b.chiSquared);
+            }
+        });
+        return new Result(ranked);
+    }
+
+    private static int rank(Start start) {
+        return start.failed ? 2 : (start.pruned ? 1 : 0);
+    }
+
+    /**
+     * Generate starts uniformly at random within bounds.
+     * @param numStarts number of starts
+     * @param lower lower bound of each coefficient
+     * @param upper upper bound of each coefficient
+     * @param random source of random numbers
+     * @return {@code numStarts} guesses
+     */
+    public static double[][] randomStarts(int numStarts, double[] lower, double[] upper, Random random) {
+        checkBounds(lower, upper);
+        double[][] starts = new double[numStarts][lower.length];
+        for (int s = 0; s < numStarts; s++) {
+            for (int c = 0; c < lower.length; c++) {
+                starts[s][c] = lower[c] + random.nextDouble() * (upper[c] - lower[c]);
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * Generate starts by Latin hypercube sampling: the range of each
+     * coefficient is divided into {@code numStarts} equal strata, and every
+     * stratum of every coefficient holds exactly one start.
+     * @param numStarts number of starts
+     * @param lower lower bound of each coefficient
+     * @param upper upper bound of each coefficient
+     * @param random source of random numbers
+     * @return {@code numStarts} guesses
+     */
+    public static double[][] latinHypercubeStarts(int numStarts, double[] lower, double[] upper, Random random) {
+        checkBounds(lower, upper);
+        double[][] starts = new double[numStarts][lower.length];
+        int[] strata = new int[numStarts];
+        for (int c = 0; c < lower.length; c++) {
+            for (int s = 0; s < numStarts; s++) {
+                strata[s] = s;
+            }
+            // shuffle the strata among the starts
+            for (int s = numStarts - 1; s > 0; s--) {
+                int other = random.nextInt(s + 1);
+                int swap = strata[s];
+                strata[s] = strata[other];
+                strata[other] = swap;
+            }
+            double width = (upper[c] - lower[c]) / numStarts;
+            for (int s = 0; s < numStarts; s++) {
+                starts[s][c] = lower[c] + (strata[s] + random.nextDouble()) * width;
+            }
+        }
+        return starts;
+    }
+
+    private static void checkBounds(double[] lower, double[] upper) {
+        if (lower.length != upper.length) {
+            throw new RuntimeException("Lower and upper bounds must be the same length");
+        }
+        for (int c = 0; c < lower.length; c++) {
+            if (!(lower[c] <= upper[c])) {
+                throw new RuntimeException("Lower bound of coefficient " + c + " is above its upper bound");
+            }
+        }
+    }
+
+    /**
+     * Run one stage of the search for a set of starts.
+     * @param starts starts to run
+     * @param maxIterations iterations allowed in this stage, or when
+     *          resuming, in total over both stages
+     * @param resume {@code true} to warm-start from the end of the last stage
+     */
+    protected void run(Start[] starts, int maxIterations, boolean resume) {
+        if (starts.length == 0) {
+            return;
+        }
+        ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+        int numWorkers = Math.max(1, Math.min(p.getParallelism(), starts.length));
+        if (workers == null || workers.length < numWorkers) {
+            workers = new Worker[numWorkers];
+        }
+        DataSource data = template.getDataSource();
+        AtomicInteger nextStart = new AtomicInteger(0);
+        Worker[] tasks = new Worker[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            if (workers[w] == null) {
+                workers[w] = new Worker(new LevenbergMarquardtEstimator(template));
+            }
+            tasks[w] = workers[w];
+            // pick up any settings changed since the worker was created
+            tasks[w].estimator.copySettings(template);
+            tasks[w].start(data, starts, maxIterations, resume, nextStart);
+        }
+        p.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Runs starts one after another with a single re-used estimator session,
+     * claiming them from a shared counter until none are left.
+     */
+    protected class Worker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final LevenbergMarquardtEstimator estimator;
+        Start[] starts;
+        int maxIterations;
+        boolean resume;
+        AtomicInteger nextStart;
+
+        Worker(LevenbergMarquardtEstimator estimator) {
+            this.estimator = estimator;
+        }
+
+        void start(DataSource data, Start[] starts, int maxIterations, boolean resume,
+                AtomicInteger nextStart) {
+            estimator.setDataSource(data);
+            this.starts = starts;
+            this.maxIterations = maxIterations;
+            this.resume = resume;
+            this.nextStart = nextStart;
+            reinitialize();
+        }
+
+        @Override
+        protected void compute() {
+            int s;
+            while ((s = nextStart.getAndIncrement()) < starts.length) {
+                fitOne(starts[s]);
+            }
+            // drop references to the caller's data
+            starts = null;
+            estimator.clearData();
+        }
+
+        void fitOne(Start start) {
+            try {
+                if (resume) {
+                    int remaining = maxIterations - start.iterations;
+                    if (remaining < 1) {
+                        // the budget is used up; keep the first stage's result
+                        return;
+                    }
+                    start.coef = estimator.fitAtMost(start.coef, start.lambda, remaining);
+                    start.iterations += estimator.estimatedIterations();
+                } else {
+                    start.coef = estimator.fitAtMost(start.guess, Double.NaN, Math.max(1, maxIterations));
+                    start.iterations = estimator.estimatedIterations();
+                }
+                start.chiSquared = estimator.estimatedChiSquared();
+                start.lambda = estimator.estimatedLambda();
+                start.termination = estimator.estimatedTerminationReason();
+            } catch (RuntimeException ex) {
+                if (resume) {
+                    // the first stage's coefficients are still a valid result
+                    return;
+                }
+                start.failed = true;
+                start.coef = new double[start.guess.length];
+                Arrays.fill(start.coef, Double.NaN);
+                start.chiSquared = Double.NaN;
+                start.termination = null;
+            }
+        }
+    }
+}
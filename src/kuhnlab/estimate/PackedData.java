@@ -0,0 +1,159 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+
+/**
+ * Packed storage for the data points of an estimate. Instead of one object
+ * per point, the coordinates of all points are kept in a single flat array
+ * indexed by {@code index * dimension + d}, next to contiguous arrays of
+ * values and weights. Passes over the data then walk memory sequentially.
+ *
+ * @author jrkuhn
+ */
+public class PackedData implements DataSource {
+    protected int dimension;
+    protected int size;
+    /** Point coordinates, {@code dimension} values per point. */
+    protected double[] points;
+    /** Measured values at each point. */
+    protected double[] values;
+    /** Estimated standard deviation of each value. */
+    protected double[] weights;
+
+    /**
+     * Create an empty data store.
+     * @param dimension number of coordinates per point.
+     */
+    public PackedData(int dimension) {
+        this(dimension, 16);
+    }
+
+    /**
+     * Create an empty data store with room for some points.
+     * @param dimension number of coordinates per point.
+     * @param initialCapacity number of points to allocate space for.
+     */
+    public PackedData(int dimension, int initialCapacity) {
+        if (dimension < 1) {
+            throw new RuntimeException("Point dimension must be positive");
+        }
+        this.dimension = dimension;
+        this.size = 0;
+        initialCapacity = Math.max(initialCapacity, 1);
+        points = new double[initialCapacity * dimension];
+        values = new double[initialCapacity];
+        weights = new double[initialCapacity];
+    }
+
+    /**
+     * Get number of coordinates in each point.
+     * @return dimension of a point
+     */
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the number of points stored.
+     * @return number of data points
+     */
+    public long size() {
+        return size;
+    }
+
+    public void read(long from, int count, double[] xs, double[] ys, double[] sigmas) {
+        int start = (int) from;
+        System.arraycopy(points, start * dimension, xs, 0, count * dimension);
+        System.arraycopy(values, start, ys, 0, count);
+        System.arraycopy(weights, start, sigmas, 0, count);
+    }
+
+    /**
+     * Remove all points. The allocated storage is kept for re-use.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Make sure there is room for at least {@code capacity} points.
+     * @param capacity total number of points to hold.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= values.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, values.length + (values.length >> 1));
+        points = Arrays.copyOf(points, newCapacity * dimension);
+        values = Arrays.copyOf(values, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+    }
+
+    /**
+     * Append a single point.
+     * @param point coordinates of the point ({@link #getPointDimension} long)
+     * @param value value at this point
+     * @param weight estimated standard deviation of the value
+     */
+    public void add(double[] point, double value, double weight) {
+        ensureCapacity(size + 1);
+        System.arraycopy(point, 0, points, size * dimension, dimension);
+        values[size] = value;
+        weights[size] = weight;
+        size++;
+    }
+
+    /**
+     * Append a range of points from packed arrays.
+     * @param xs packed coordinates, {@link #getPointDimension} values per point
+     * @param ys values at each point
+     * @param sigmas estimated standard deviation of each value
+     * @param from index of the first point to copy
+     * @param count number of points to copy
+     */
+    public void addAll(double[] xs, double[] ys, double[] sigmas, int from, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(xs, from * dimension, points, size * dimension, count * dimension);
+        System.arraycopy(ys, from, values, size, count);
+        System.arraycopy(sigmas, from, weights, size, count);
+        size += count;
+    }
+
+    /**
+     * Append a range of points from packed arrays, all with the same weight.
+     * @param xs packed coordinates, {@link #getPointDimension} values per point
+     * @param ys values at each point
+     * @param sigma estimated standard deviation of every value
+     * @param from index of the first point to copy
+     * @param count number of points to copy
+     */
+    public void addAll(double[] xs, double[] ys, double sigma, int from, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(xs, from * dimension, points, size * dimension, count * dimension);
+        System.arraycopy(ys, from, values, size, count);
+        Arrays.fill(weights, size, size + count, sigma);
+        size += count;
+    }
+
+    /**
+     * Copy the coordinates of a point into a buffer.
+     * @param index index of the point
+     * @param point buffer to fill, at least {@link #getPointDimension} long
+     */
+    public void getPoint(int index, double[] point) {
+        System.arraycopy(points, index * dimension, point, 0, dimension);
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public double getWeight(int index) {
+        return weights[index];
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.io.PrintStream;
+
+/**
+ * Prints the progress of a fit as text, one block per iteration. This is the
+ * listener installed by {@link LevenbergMarquardtEstimator#setDebugStream}.
+ *
+ * @author jrkuhn
+ */
+public class PrintingFitListener implements FitListener {
+    protected final PrintStream out;
+
+    public PrintingFitListener(PrintStream out) {
+        this.out = out;
+    }
+
+    public PrintStream getStream() {
+        return out;
+    }
+
+    @Override
+    public void iteration(LevenbergMarquardtEstimator estimator, Iteration info) {
+        if (info.accepted) {
+            out.println("## On the Golden Path.");
+        } else {
+            out.println("## Bad step. Trying bigger leap.");
+        }
+        out.printf("Iteration: %d", info.iteration);
+        if (info.extraIterations > 0)
+            out.printf(" (%d EXTRA)", info.extraIterations);
+        out.printf(" Chi-Squared: %11.10g%n", info.chiSquared);
+        for (int i = 0; i < info.coef.length; i++) {
+            String cname = "coef[" + i + "]";
+            out.printf("%10s ", cname);
+        }
+        out.println();
+        for (int i = 0; i < info.coef.length; i++) {
+            out.printf("%10.8g ", info.coef[i]);
+        }
+        out.println();
+    }
+
+    @Override
+    public void fitFinished(LevenbergMarquardtEstimator estimator) {
+        out.printf("--- Stopped after %d iterations (%s) ---%n",
+                estimator.estimatedIterations(), estimator.estimatedTerminationReason());
+        if (estimator.isLazyJacobian()) {
+            long saved = estimator.getSavedJacobianEvaluations();
+            out.printf("--- Skipped %d of %d derivative evaluations ---%n",
+                    saved, saved + estimator.getJacobianEvaluations());
+        }
+    }
+}
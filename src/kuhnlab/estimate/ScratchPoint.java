@@ -0,0 +1,62 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * Per-thread point buffer for the default block evaluation methods, which
+ * pass the points of a block one at a time to {@code getValue}. Re-using one
+ * buffer per thread keeps those methods from allocating on every call.
+ * <p>
+ * A function whose {@code getValue} itself evaluates a block, such as a
+ * composite of other functions, would overwrite the point it was given, so
+ * a buffer that is already in use is never handed out twice; a fresh array
+ * is returned instead.
+ *
+ * @author jrkuhn
+ */
+final class ScratchPoint {
+    private static final ThreadLocal<ScratchPoint> scratch = new ThreadLocal<ScratchPoint>() {
+        @Override
+        protected ScratchPoint initialValue() {
+            return new ScratchPoint();
+        }
+    };
+
+    private double[] point = new double[0];
+    private boolean inUse;
+
+    private ScratchPoint() {
+    }
+
+    /**
+     * Get a point buffer for the calling thread. Hand it back with
+     * {@link #release} when done.
+     * @param dimension number of coordinates per point
+     * @return a buffer of exactly {@code dimension} values
+     */
+    static double[] acquire(int dimension) {
+        ScratchPoint s = scratch.get();
+        if (s.inUse) {
+            return new double[dimension];
+        }
+        if (s.point.length != dimension) {
+            s.point = new double[dimension];
+        }
+        s.inUse = true;
+        return s.point;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire}.
+     * @param point the buffer
+     */
+    static void release(double[] point) {
+        ScratchPoint s = scratch.get();
+        if (s.point == point) {
+            s.inUse = false;
+        }
+    }
+}
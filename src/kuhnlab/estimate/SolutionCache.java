@@ -0,0 +1,401 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of finished fits, used to warm-start new fits of nearly
+ * identical data: the same region in the next frame of a time-lapse, or the
+ * next pixel of a per-pixel map. Attach one to an estimator with
+ * {@link LevenbergMarquardtEstimator#setSolutionCache}.
+ * <p>
+ * Each solution is stored under a key given by the caller, or, without a
+ * key, under a fingerprint of the data (see {@link #fingerprint}). A new fit
+ * starts from the solution stored under its key, or failing that from the
+ * solution whose fingerprint is nearest to that of its data, with the
+ * coefficients and lambda that solution finished with. Only data of the same
+ * size and dimension is compared, and only within
+ * {@link #setMaxDistance a maximum distance}, and only among the
+ * {@link #NEAREST_CANDIDATES} most recently stored solutions of that shape;
+ * otherwise the fit starts from the caller's guess. The least recently used solution is evicted when the
+ * cache is full.
+ * <p>
+ * The cache is thread-safe, so it may be shared by several estimators. It
+ * is not copied to estimators made from a template, such as the workers of
+ * a {@link BatchEstimator}.
+ *
+ * @author jrkuhn
+ */
+public class SolutionCache {
+    /** Number of bins in a data fingerprint. */
+    public static final int FINGERPRINT_BINS = 16;
+    /** Default largest distance for a nearest-fingerprint match. */
+    public static final double DEFAULT_MAX_DISTANCE = 0.1;
+    /**
+     * Number of the most recently stored solutions of each data shape that a
+     * nearest-fingerprint match is chosen from.
+     */
+    public static final int NEAREST_CANDIDATES = 32;
+
+    /**
+     * A finished fit.
+     */
+    public static class Solution {
+        public final double[] coef;
+        public final double lambda;
+        public final double chiSquared;
+        public final int iterations;
+        /** Factorization of the final alpha, over the free coefficients. */
+        protected final SymmetricSolver factor;
+        /** Function coefficient index of each row of {@link #factor}. */
+        protected final int[] activeCoef;
+        protected final double[] fingerprint;
+
+        public Solution(double[] coef, double lambda, double chiSquared, int iterations,
+                SymmetricSolver factor, int[] activeCoef, double[] fingerprint) {
+            this.coef = coef;
+            this.lambda = lambda;
+            this.chiSquared = chiSquared;
+            this.iterations = iterations;
+            this.factor = factor;
+            this.activeCoef = activeCoef;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Get the covariance of the coefficients, from the stored
+         * factorization.
+         * @return the covariance matrix. Fixed coefficients have zero
+         *          covariance.
+         * @throws java.lang.RuntimeException if the final alpha was singular.
+         */
+        public double[][] getCovariance() throws RuntimeException {
+            int numActive = factor.getDimension();
+            double[] inverse = new double[numActive * numActive];
+            factor.inverse(inverse);
+            double[][] covariance = new double[coef.length][coef.length];
+            for (int row = 0; row < numActive; row++) {
+                double[] out = covariance[activeCoef[row]];
+                for (int col = 0; col < numActive; col++) {
+                    out[activeCoef[col]] = inverse[row * numActive + col];
+                }
+            }
+            return covariance;
+        }
+    }
+
+    protected final int capacity;
+    protected final LinkedHashMap<Object, Solution> entries;
+    /**
+     * The same entries grouped by the size and dimension of their data, so a
+     * nearest match only compares data of the same shape.
+     */
+    protected final HashMap<Shape, ShapeGroup> byShape = new HashMap<Shape, ShapeGroup>();
+    protected double maxDistance = DEFAULT_MAX_DISTANCE;
+
+    protected long exactHits, nearestHits, misses;
+    protected long coldIterations, warmIterations, numCold, numWarm;
+
+    /**
+     * Create an empty cache.
+     * @param capacity maximum number of solutions kept
+     */
+    public SolutionCache(final int capacity) {
+        if (capacity < 1) {
+            throw new RuntimeException("Cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        // access order, so iteration starts from the least recently used
+        entries = new LinkedHashMap<Object, Solution>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Solution> eldest) {
+                if (size() > capacity) {
+                    removeKey(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Limit how far the nearest fingerprint may be for it to be used.
+     * @param maxDistance largest relative distance (see {@link #distance})
+     *          to accept, {@link #DEFAULT_MAX_DISTANCE} by default. Use 0 to
+     *          only accept identical fingerprints. Data of another size or
+     *          dimension never matches.
+     */
+    public synchronized void setMaxDistance(double maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove every solution. The statistics are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        byShape.clear();
+    }
+
+    /**
+     * Find the solution to start a fit from.
+     * @param key the caller's key, or {@code null} to use the fingerprint
+     * @param fingerprint fingerprint of the data to fit
+     * @return the solution under {@code key} (or with the same fingerprint
+     *          if {@code key} is {@code null}), else the one with the
+     *          nearest fingerprint among data of the same size and
+     *          dimension, if within the maximum distance, else {@code null}.
+     */
+    public synchronized Solution lookup(Object key, double[] fingerprint) {
+        Solution found = entries.get(key != null ? key : new Fingerprint(fingerprint));
+        if (found != null) {
+            exactHits++;
+            return found;
+        }
+        // only data of the same shape can match
+        Object nearestKey = null;
+        ShapeGroup group = byShape.get(new Shape(fingerprint));
+        if (group != null) {
+            double nearestDistance = maxDistance;
+            for (Object candidate : group.recent) {
+                Solution solution = (candidate != null) ? group.solutions.get(candidate) : null;
+                if (solution == null) {
+                    continue;
+                }
+                double d = distance(fingerprint, solution.fingerprint);
+                if (d <= nearestDistance && !Double.isInfinite(d)) {
+                    nearestDistance = d;
+                    nearestKey = candidate;
+                }
+            }
+        }
+        if (nearestKey == null) {
+            misses++;
+            return null;
+        }
+        nearestHits++;
+        // touch it, so it counts as recently used
+        return entries.get(nearestKey);
+    }
+
+    /**
+     * Get the solution stored under a key, without counting a hit or miss.
+     * @param key the caller's key
+     * @return the solution, or {@code null}
+     */
+    public synchronized Solution get(Object key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Store a finished fit.
+     * @param key the caller's key, or {@code null} to store it under the
+     *          fingerprint in the solution
+     * @param solution the finished fit
+     * @param warm {@code true} if the fit was warm-started from this cache
+     */
+    public synchronized void store(Object key, Solution solution, boolean warm) {
+        Object entryKey = (key != null) ? key : new Fingerprint(solution.fingerprint);
+        Solution replaced = entries.remove(entryKey);
+        if (replaced != null) {
+            removeKey(entryKey, replaced);
+        }
+        Shape shape = new Shape(solution.fingerprint);
+        ShapeGroup group = byShape.get(shape);
+        if (group == null) {
+            group = new ShapeGroup();
+            byShape.put(shape, group);
+        }
+        group.add(entryKey, solution);
+        entries.put(entryKey, solution);
+        if (warm) {
+            warmIterations += solution.iterations;
+            numWarm++;
+        } else {
+            coldIterations += solution.iterations;
+            numCold++;
+        }
+    }
+
+    private void removeKey(Object key, Solution solution) {
+        Shape shape = new Shape(solution.fingerprint);
+        ShapeGroup group = byShape.get(shape);
+        if (group != null) {
+            group.solutions.remove(key);
+            if (group.solutions.isEmpty()) {
+                byShape.remove(shape);
+            }
+        }
+    }
+
+    public synchronized long getExactHits() {
+        return exactHits;
+    }
+
+    public synchronized long getNearestHits() {
+        return nearestHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the fraction of lookups that found a solution.
+     * @return hits over lookups, or {@code NaN} before the first lookup
+     */
+    public synchronized double getHitRate() {
+        long hits = exactHits + nearestHits;
+        return (double) hits / (hits + misses);
+    }
+
+    /**
+     * Estimate the iterations saved by warm starts: the mean iterations of
+     * the cold (missed) fits, less the mean of the warm-started ones, times
+     * the number of warm-started fits.
+     * @return estimated iterations saved, or 0 before there is a cold fit to
+     *          compare with
+     */
+    public synchronized double getIterationsSaved() {
+        if (numCold == 0 || numWarm == 0) {
+            return 0;
+        }
+        return numWarm * ((double) coldIterations / numCold) - warmIterations;
+    }
+
+    /**
+     * Compute a fingerprint of a data source: its size and dimension,
+     * followed by the mean value of {@link #FINGERPRINT_BINS} evenly spaced
+     * samples of up to one block of points each. Reads at most
+     * {@code FINGERPRINT_BINS * 256} points, whatever the size of the data.
+     * @param data the data
+     * @return the fingerprint
+     */
+    public static double[] fingerprint(DataSource data) {
+        int dim = data.getPointDimension();
+        long size = data.size();
+        double[] result = new double[2 + FINGERPRINT_BINS];
+        result[0] = size;
+        result[1] = dim;
+        int block = AlphaBetaChi.BLOCK_SIZE;
+        double[] points = new double[block * dim];
+        double[] values = new double[block];
+        double[] weights = new double[block];
+        for (int bin = 0; bin < FINGERPRINT_BINS && size > 0; bin++) {
+            long from = size * bin / FINGERPRINT_BINS;
+            long to = size * (bin + 1) / FINGERPRINT_BINS;
+            int count = (int) Math.min(block, to - from);
+            if (count <= 0) {
+                // fewer points than bins; repeat the previous bin
+                result[2 + bin] = result[1 + bin];
+                continue;
+            }
+            data.read(from, count, points, values, weights);
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += values[i];
+            }
+            result[2 + bin] = sum / count;
+        }
+        return result;
+    }
+
+    /**
+     * Distance between two fingerprints: infinite if the data differ in size
+     * or dimension, otherwise the RMS difference of the binned values
+     * relative to their RMS size.
+     */
+    protected double distance(double[] a, double[] b) {
+        if (a[0] != b[0] || a[1] != b[1] || a.length != b.length) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double diff = 0, norm = 0;
+        for (int i = 2; i < a.length; i++) {
+            double d = a[i] - b[i];
+            diff += d * d;
+            norm += 0.5 * (a[i] * a[i] + b[i] * b[i]);
+        }
+        return (norm > 0) ? Math.sqrt(diff / norm) : Math.sqrt(diff);
+    }
+
+    /**
+     * The size and dimension of fingerprinted data.
+     */
+    protected static final class Shape {
+        final double size, dimension;
+
+        Shape(double[] fingerprint) {
+            size = fingerprint[0];
+            dimension = fingerprint[1];
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Shape && ((Shape) other).size == size
+                    && ((Shape) other).dimension == dimension;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(size) * 31 + Double.hashCode(dimension);
+        }
+    }
+
+    /**
+     * The solutions for data of one shape, and the keys of the most recently
+     * stored ones. Keys of solutions since evicted stay in {@code recent}
+     * until overwritten, and are skipped.
+     */
+    protected static final class ShapeGroup {
+        final HashMap<Object, Solution> solutions = new HashMap<Object, Solution>();
+        final Object[] recent = new Object[NEAREST_CANDIDATES];
+        int next;
+
+        void add(Object key, Solution solution) {
+            solutions.put(key, solution);
+            for (Object other : recent) {
+                if (key.equals(other)) {
+                    return;
+                }
+            }
+            recent[next] = key;
+            next = (next + 1) % recent.length;
+        }
+    }
+
+    /**
+     * Map key for a solution stored by fingerprint.
+     */
+    protected static final class Fingerprint {
+        final double[] values;
+
+        Fingerprint(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Fingerprint && Arrays.equals(values, ((Fingerprint) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
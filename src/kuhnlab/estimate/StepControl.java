@@ -0,0 +1,147 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import kuhnlab.estimate.LevenbergMarquardtEstimator.LambdaUpdate;
+
+/**
+ * The step acceptance, lambda update and Chi-Squared stop rules of the
+ * Levenberg-Marquardt iterations, shared by {@link LevenbergMarquardtEstimator}
+ * and {@link GlobalFitEstimator}. Each iteration calls {@link #isGood} with
+ * the trial Chi-Squared, then {@link #accept} or {@link #reject}, then
+ * {@link #endIteration}.
+ * <p>
+ * With {@link LambdaUpdate#FIXED_FACTOR} a trial is compared against the
+ * previous trial, and a trial that ties it counts as a good step. Rejected
+ * steps also count towards the delta Chi-Squared stop, so a fit that has
+ * reached the minimum, where rounding makes every step a tie or a small
+ * rise, still stops. With {@link LambdaUpdate#NIELSEN} a trial must lower
+ * the Chi-Squared of the current coefficients, and only accepted steps are
+ * counted.
+ *
+ * @author jrkuhn
+ */
+class StepControl {
+    LambdaUpdate update = LambdaUpdate.FIXED_FACTOR;
+    double lambdaScalePerStep = 0.1;
+    double deltaChiSquaredStop = 0.1;
+    int maxExtraIterations = 3;
+    double relativeChiSquaredStop = 0;
+
+    double lambda;
+    /** Factor lambda grows by after the next bad step, for Nielsen's update. */
+    double lambdaGrowth;
+    /** Chi-Squared of the current coefficients. */
+    double coefChiSq;
+    /**
+     * Chi-Squared the next trial is compared against: the last trial for the
+     * classic strategy, otherwise the current coefficients'.
+     */
+    double curChiSq;
+    double lastChiSq;
+    int extraIterations;
+
+    void setup(LambdaUpdate update, double lambdaScalePerStep, double deltaChiSquaredStop,
+            int maxExtraIterations, double relativeChiSquaredStop) {
+        this.update = update;
+        this.lambdaScalePerStep = lambdaScalePerStep;
+        this.deltaChiSquaredStop = deltaChiSquaredStop;
+        this.maxExtraIterations = maxExtraIterations;
+        this.relativeChiSquaredStop = relativeChiSquaredStop;
+    }
+
+    /**
+     * Start a fit.
+     * @param chiSq Chi-Squared of the initial coefficients
+     * @param lambda initial lambda
+     */
+    void start(double chiSq, double lambda) {
+        this.lambda = lambda;
+        lambdaGrowth = 2.0;
+        coefChiSq = chiSq;
+        curChiSq = chiSq;
+        lastChiSq = chiSq;
+        extraIterations = 0;
+    }
+
+    /**
+     * Should a trial step be accepted?
+     * @param trialChiSq Chi-Squared at the trial coefficients
+     * @param accelerated {@code false} if the step was given up on without
+     *          evaluating it
+     */
+    boolean isGood(double trialChiSq, boolean accelerated) {
+        if (!accelerated) {
+            return false;
+        } else if (update == LambdaUpdate.NIELSEN) {
+            return trialChiSq < coefChiSq;
+        } else {
+            return !(trialChiSq > curChiSq);
+        }
+    }
+
+    /**
+     * Increase lambda after a bad step.
+     */
+    void reject() {
+        if (update == LambdaUpdate.NIELSEN) {
+            lambda *= lambdaGrowth;
+            lambdaGrowth *= 2;
+        } else {
+            lambda /= lambdaScalePerStep;
+        }
+    }
+
+    /**
+     * Decrease lambda after a good step and make the trial current.
+     * @param trialChiSq Chi-Squared at the trial coefficients
+     * @param predicted reduction in Chi-Squared predicted by the linear
+     *          model, {@code delta.(beta + lambda*D*delta)}
+     * @return {@code true} if the relative Chi-Squared stop condition is met
+     */
+    boolean accept(double trialChiSq, double predicted) {
+        if (update == LambdaUpdate.NIELSEN) {
+            // compare the actual reduction with the prediction
+            double g = 2 * (coefChiSq - trialChiSq) / predicted - 1;
+            lambda *= Math.max(1.0 / 3.0, 1 - g * g * g);
+            lambdaGrowth = 2.0;
+        } else {
+            lambda *= lambdaScalePerStep;
+        }
+        boolean relative = relativeChiSquaredStop > 0
+                && coefChiSq - trialChiSq <= relativeChiSquaredStop * trialChiSq
+                && predicted <= relativeChiSquaredStop * trialChiSq;
+        coefChiSq = trialChiSq;
+        return relative;
+    }
+
+    /**
+     * Finish an iteration and check whether Chi-Squared has changed much.
+     * @param trialChiSq Chi-Squared at the trial coefficients
+     * @param goodStep whether the step was accepted
+     * @param accelerated {@code false} if the step was given up on without
+     *          evaluating it
+     * @return {@code true} if the delta Chi-Squared stop condition is met
+     */
+    boolean endIteration(double trialChiSq, boolean goodStep, boolean accelerated) {
+        boolean classic = (update == LambdaUpdate.FIXED_FACTOR);
+        curChiSq = classic ? trialChiSq : coefChiSq;
+        // Only the classic strategy counts rejected steps.
+        if (!goodStep && !(classic && accelerated)) {
+            // no new chi-squared to compare
+        } else if (Math.abs(curChiSq - lastChiSq) < deltaChiSquaredStop) {
+            // we have reached the stop condition,
+            // but allow for a few extra iterations
+            extraIterations++;
+        } else {
+            // we are not at the stop condition
+            // clear any extra iterations
+            extraIterations = 0;
+        }
+        lastChiSq = curChiSq;
+        return extraIterations >= maxExtraIterations;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.util.Arrays;
+
+/**
+ * In-place solver for the symmetric linear systems of a least-squares fit.
+ * Matrices are flat, row-major {@code n * n} arrays and only their upper
+ * triangle is read. All workspaces are allocated once, in the constructor,
+ * so a solver can be re-used for every iteration of a fit without creating
+ * garbage.
+ * <p>
+ * {@link #factor} first tries a Cholesky decomposition. If the matrix is not
+ * positive definite it falls back to an LU decomposition with partial
+ * pivoting.
+ *
+ * @author jrkuhn
+ */
+public class SymmetricSolver {
+    protected final int n;
+    /** Cholesky factor L (lower triangle) or combined L\U factors. */
+    protected final double[] lu;
+    protected final int[] pivot;
+    protected final double[] work;
+    protected boolean cholesky;
+    protected boolean factored;
+
+    /**
+     * Create a solver for {@code n} by {@code n} systems.
+     * @param n number of rows and columns
+     */
+    public SymmetricSolver(int n) {
+        this.n = n;
+        lu = new double[n * n];
+        pivot = new int[n];
+        work = new double[n];
+        factored = false;
+    }
+
+    /**
+     * Create a copy of another solver, including its current factorization.
+     * @param other solver to copy
+     */
+    public SymmetricSolver(SymmetricSolver other) {
+        this(other.n);
+        System.arraycopy(other.lu, 0, lu, 0, lu.length);
+        System.arraycopy(other.pivot, 0, pivot, 0, n);
+        cholesky = other.cholesky;
+        factored = other.factored;
+    }
+
+    public int getDimension() {
+        return n;
+    }
+
+    /**
+     * Factor a symmetric matrix.
+     * @param a flat row-major matrix. Only the upper triangle is read.
+     * @return {@code false} if the matrix is singular.
+     */
+    public boolean factor(double[] a) {
+        return factor(a, 1.0);
+    }
+
+    /**
+     * Factor a symmetric matrix whose diagonal has been multiplied by a
+     * scale, without modifying the original. With {@code diagScale = 1 + lambda}
+     * this is the damped Levenberg-Marquardt matrix alpha'.
+     * @param a flat row-major matrix. Only the upper triangle is read.
+     * @param diagScale factor applied to each diagonal element.
+     * @return {@code false} if the matrix is singular.
+     */
+    public boolean factor(double[] a, double diagScale) {
+        return factor(a, diagScale, 0.0);
+    }
+
+    /**
+     * Factor a symmetric matrix whose diagonal has been replaced by
+     * {@code a[i][i] * diagScale + diagAdd}, without modifying the original.
+     * Covers both Marquardt damping ({@code diagScale = 1 + lambda}) and
+     * Levenberg damping ({@code diagAdd = lambda}).
+     * @param a flat row-major matrix. Only the upper triangle is read.
+     * @param diagScale factor applied to each diagonal element.
+     * @param diagAdd value added to each diagonal element after scaling.
+     * @return {@code false} if the matrix is singular.
+     */
+    public boolean factor(double[] a, double diagScale, double diagAdd) {
+        for (int i = 0; i < n; i++) {
+            int ii = i * n + i;
+            work[i] = a[ii] * diagScale + diagAdd;
+            lu[ii] = work[i];
+            for (int j = i + 1; j < n; j++) {
+                lu[i * n + j] = a[i * n + j];
+            }
+        }
+        return factorCopy();
+    }
+
+    /**
+     * Factor the symmetric matrix held in the upper triangle of {@code lu},
+     * with its diagonal also saved in {@code work}.
+     */
+    protected boolean factorCopy() {
+        factored = true;
+        cholesky = true;
+        if (choleskyInPlace()) {
+            return true;
+        }
+        // not positive definite. Rebuild the full matrix from the untouched
+        // upper triangle and the saved diagonal, and pivot instead.
+        cholesky = false;
+        for (int i = 0; i < n; i++) {
+            lu[i * n + i] = work[i];
+            for (int j = i + 1; j < n; j++) {
+                lu[j * n + i] = lu[i * n + j];
+            }
+        }
+        factored = luInPlace();
+        return factored;
+    }
+
+    /**
+     * Cholesky decomposition, A = L L<sup>T</sup>. L is written into the
+     * lower triangle and diagonal, leaving the strict upper triangle intact.
+     */
+    protected boolean choleskyInPlace() {
+        for (int j = 0; j < n; j++) {
+            int jn = j * n;
+            double sum = lu[jn + j];
+            for (int k = 0; k < j; k++) {
+                sum -= lu[jn + k] * lu[jn + k];
+            }
+            if (!(sum > 0)) {
+                return false;
+            }
+            double ljj = Math.sqrt(sum);
+            lu[jn + j] = ljj;
+            for (int i = j + 1; i < n; i++) {
+                int in = i * n;
+                // A[i][j] from the upper triangle
+                double s = lu[jn + i];
+                for (int k = 0; k < j; k++) {
+                    s -= lu[in + k] * lu[jn + k];
+                }
+                lu[in + j] = s / ljj;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * LU decomposition with partial pivoting, PA = LU.
+     */
+    protected boolean luInPlace() {
+        for (int i = 0; i < n; i++) {
+            pivot[i] = i;
+        }
+        for (int k = 0; k < n; k++) {
+            int p = k;
+            double max = Math.abs(lu[k * n + k]);
+            for (int i = k + 1; i < n; i++) {
+                double v = Math.abs(lu[i * n + k]);
+                if (v > max) {
+                    max = v;
+                    p = i;
+                }
+            }
+            if (max == 0) {
+                return false;
+            }
+            if (p != k) {
+                for (int j = 0; j < n; j++) {
+                    double t = lu[p * n + j];
+                    lu[p * n + j] = lu[k * n + j];
+                    lu[k * n + j] = t;
+                }
+                int t = pivot[p];
+                pivot[p] = pivot[k];
+                pivot[k] = t;
+            }
+            double pivotValue = lu[k * n + k];
+            for (int i = k + 1; i < n; i++) {
+                double f = lu[i * n + k] /= pivotValue;
+                if (f != 0) {
+                    for (int j = k + 1; j < n; j++) {
+                        lu[i * n + j] -= f * lu[k * n + j];
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Was the last factorization a Cholesky decomposition?
+     * @return {@code true} if the last factored matrix was positive definite.
+     */
+    public boolean isPositiveDefinite() {
+        return factored && cholesky;
+    }
+
+    /**
+     * Solve A x = b using the last factorization.
+     * @param b right hand side
+     * @param x solution. May be the same array as {@code b}.
+     */
+    public void solve(double[] b, double[] x) {
+        if (!factored) {
+            throw new RuntimeException("Matrix is singular.");
+        }
+        if (cholesky) {
+            // forward substitution, L y = b
+            for (int i = 0; i < n; i++) {
+                int in = i * n;
+                double s = b[i];
+                for (int k = 0; k < i; k++) {
+                    s -= lu[in + k] * work[k];
+                }
+                work[i] = s / lu[in + i];
+            }
+            // back substitution, L^T x = y
+            for (int i = n - 1; i >= 0; i--) {
+                double s = work[i];
+                for (int k = i + 1; k < n; k++) {
+                    s -= lu[k * n + i] * x[k];
+                }
+                x[i] = s / lu[i * n + i];
+            }
+        } else {
+            // forward substitution with the unit lower factor, L y = P b
+            for (int i = 0; i < n; i++) {
+                int in = i * n;
+                double s = b[pivot[i]];
+                for (int k = 0; k < i; k++) {
+                    s -= lu[in + k] * work[k];
+                }
+                work[i] = s;
+            }
+            // back substitution, U x = y
+            for (int i = n - 1; i >= 0; i--) {
+                int in = i * n;
+                double s = work[i];
+                for (int k = i + 1; k < n; k++) {
+                    s -= lu[in + k] * x[k];
+                }
+                x[i] = s / lu[in + i];
+            }
+        }
+    }
+
+    /**
+     * Compute the inverse of the last factored matrix.
+     * @param inverse flat row-major {@code n * n} array to fill.
+     */
+    public void inverse(double[] inverse) {
+        double[] column = new double[n];
+        for (int j = 0; j < n; j++) {
+            Arrays.fill(column, 0.0);
+            column[j] = 1.0;
+            solve(column, column);
+            for (int i = 0; i < n; i++) {
+                inverse[i * n + j] = column[i];
+            }
+        }
+    }
+}
@@ -18,13 +18,11 @@ import com.nr.util.NRVec;
  */
 public class TestLM {
 
-    public static class SumOfGaussians implements EstimateFunction {
+    public static class SumOfGaussians implements BlockEstimateFunction {
         public int nGauss;
-        FGAUSS fgauss;
         
         public SumOfGaussians(int numGauss) {
             nGauss = numGauss;
-            fgauss = new FGAUSS();
         }
         
         public int getPointDimension() {
@@ -44,13 +42,74 @@ public class TestLM {
          * are a[1..na], dyda[1..na].
          */
         public Estimate getEstimate(double[] point, double[] coef) {
+            Estimate est = new Estimate(coef.length);
+            getEstimate(point, coef, est);
+            return est;
+        }
+        /**
+         * Same sum as {@code FGAUSS.fgauss}, written directly into the
+         * result buffer so that no arrays are allocated per point.
+         */
+        public void getEstimate(double[] point, double[] coef, Estimate result) {
             int numCoef = coef.length;
             double x = point[0];
-            double[] ay = {0};
-            Estimate est = new Estimate(numCoef);
-            fgauss.fgauss(x, coef, ay, est.derivatives);
-            est.estimate = ay[0];
-            return est;
+            double y = 0;
+            double[] dyda = result.derivatives;
+            for (int i = 0; i < numCoef - 1; i += 3) {
+                double arg = (x - coef[i + 1]) / coef[i + 2];
+                double ex = Math.exp(-arg * arg);
+                double fac = coef[i] * ex * 2.0 * arg;
+                y += coef[i] * ex;
+                dyda[i] = ex;
+                dyda[i + 1] = fac / coef[i + 2];
+                dyda[i + 2] = fac * arg / coef[i + 2];
+            }
+            result.estimate = y;
+        }
+        public double getValue(double[] point, double[] coef) {
+            double x = point[0];
+            double y = 0;
+            for (int i = 0; i < coef.length - 1; i += 3) {
+                double arg = (x - coef[i + 1]) / coef[i + 2];
+                y += coef[i] * Math.exp(-arg * arg);
+            }
+            return y;
+        }
+        /**
+         * Block version of the sum. The reciprocal of each width is computed
+         * once per block rather than once per point.
+         */
+        public void getEstimates(double[] points, int numPoints, double[] coef,
+                double[] values, double[] jacobian) {
+            int numCoef = coef.length;
+            java.util.Arrays.fill(values, 0, numPoints, 0.0);
+            for (int k = 0; k < numCoef - 1; k += 3) {
+                double amp = coef[k], center = coef[k + 1], invWidth = 1.0 / coef[k + 2];
+                for (int i = 0, offset = k; i < numPoints; i++, offset += numCoef) {
+                    double arg = (points[i] - center) * invWidth;
+                    double ex = Math.exp(-arg * arg);
+                    double fac = amp * ex * 2.0 * arg * invWidth;
+                    values[i] += amp * ex;
+                    jacobian[offset] = ex;
+                    jacobian[offset + 1] = fac;
+                    jacobian[offset + 2] = fac * arg;
+                }
+            }
+        }
+        /**
+         * Values only, for the trial steps. Divides by the width like
+         * {@link #getValue}, so the result is the same to the last bit.
+         */
+        public void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+            int numCoef = coef.length;
+            java.util.Arrays.fill(values, 0, numPoints, 0.0);
+            for (int k = 0; k < numCoef - 1; k += 3) {
+                double amp = coef[k], center = coef[k + 1], width = coef[k + 2];
+                for (int i = 0; i < numPoints; i++) {
+                    double arg = (points[i] - center) / width;
+                    values[i] += amp * Math.exp(-arg * arg);
+                }
+            }
         }
     }
 
@@ -92,10 +151,7 @@ public class TestLM {
         LevenbergMarquardtEstimator fit = new LevenbergMarquardtEstimator(func);
         
         // First try a sum of two Gaussians
-        for (i = 0; i < NPT; i++) {
-            double[] point = new double[] {x[i]};
-            fit.addDataPoint(point, y[i], sig[i]);
-        }
+        fit.addDataPoints(x, y, sig);
         fit.setDebugStream(System.out);
         double[] coef = fit.estimate(gues_d);
         double[][] covariance = fit.estimatedCovariance();
@@ -0,0 +1,315 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Imports data points from delimited text: CSV, TSV, or columns separated
+ * by runs of spaces. Each line is one point. Blank lines, lines starting
+ * with {@code #}, and a number of header lines (see {@link #setSkipLines})
+ * are skipped. Spaces around fields and the carriage return of CRLF line
+ * endings are ignored.
+ * <p>
+ * Each chunk is copied from the window into a re-used byte array and
+ * numbers are parsed straight from its bytes. Numbers with up to 15
+ * significant digits and a small exponent, which covers most instrument
+ * output, are converted exactly without creating any objects; anything
+ * else, such as {@code NaN} or numbers printed at full double precision,
+ * falls back to {@link Double#parseDouble}, which gives the same result
+ * more slowly.
+ *
+ * @author jrkuhn
+ */
+public class TextDataImporter extends DataImporter {
+    /** Exactly representable powers of ten. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    protected byte delimiter = ',';
+    protected int skipLines = 0;
+
+    /**
+     * Create an importer for comma-separated values.
+     * @param dimension number of coordinates per point
+     */
+    public TextDataImporter(int dimension) {
+        super(dimension);
+    }
+
+    /**
+     * Create an importer for comma-separated values.
+     * @param dimension number of coordinates per point
+     * @return the importer
+     */
+    public static TextDataImporter csv(int dimension) {
+        return new TextDataImporter(dimension);
+    }
+
+    /**
+     * Create an importer for tab-separated values.
+     * @param dimension number of coordinates per point
+     * @return the importer
+     */
+    public static TextDataImporter tsv(int dimension) {
+        TextDataImporter importer = new TextDataImporter(dimension);
+        importer.setDelimiter('\t');
+        return importer;
+    }
+
+    /**
+     * Set the character between fields. A space means fields are separated
+     * by any run of spaces and tabs.
+     * @param delimiter an ASCII character, e.g. {@code ','}, {@code '\t'},
+     *          {@code ';'} or {@code ' '}
+     */
+    public void setDelimiter(char delimiter) {
+        if (delimiter > 127 || delimiter == '\n' || delimiter == '\r') {
+            throw new RuntimeException("Delimiter must be an ASCII character other than a line end");
+        }
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * Set the number of lines at the start of the file to skip, such as a
+     * row of column names.
+     * @param skipLines number of header lines
+     */
+    public void setSkipLines(int skipLines) {
+        this.skipLines = Math.max(skipLines, 0);
+    }
+
+    @Override
+    protected int headerBytes(ByteBuffer buffer, int limit, boolean last) {
+        int pos = 0;
+        for (int line = 0; line < skipLines; line++) {
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            if (pos == limit) {
+                return last ? limit : -1;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    @Override
+    protected int recordsEnd(ByteBuffer buffer, int start, int limit, boolean last) {
+        if (last) {
+            // the final line need not end with a newline
+            return limit;
+        }
+        for (int pos = limit - 1; pos >= start; pos--) {
+            if (buffer.get(pos) == '\n') {
+                return pos + 1;
+            }
+        }
+        return start;
+    }
+
+    @Override
+    protected int alignChunk(ByteBuffer buffer, int start, int pos, int end) {
+        if (pos <= start) {
+            return start;
+        }
+        // pos starts a line if the byte before it ends one
+        for (int i = pos - 1; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    @Override
+    protected void parse(Chunk chunk) {
+        // array reads are much cheaper than buffer reads in the inner loops
+        int end = chunk.to - chunk.from;
+        if (chunk.bytes == null || chunk.bytes.length < end) {
+            chunk.bytes = new byte[Math.max(end, MIN_CHUNK_BYTES)];
+        }
+        byte[] b = chunk.bytes;
+        ByteBuffer source = chunk.buffer.duplicate();
+        source.position(chunk.from);
+        source.get(b, 0, end);
+        long offset = chunk.windowOffset + chunk.from;
+
+        double[] row = chunk.row;
+        int[] slots = columnSlot;
+        int lastColumn = slots.length - 1;
+        boolean whitespace = delimiter == ' ';
+        int i = 0;
+        while (i < end) {
+            int lineStart = i;
+            i = skipBlanks(b, i, end);
+            if (i == end || isLineEnd(b[i]) || b[i] == '#') {
+                i = nextLine(b, i, end);
+                continue;
+            }
+            int column = 0, found = 0;
+            while (true) {
+                // i is at the start of a field, with leading blanks skipped
+                int fieldEnd = i;
+                byte ch = 0;
+                while (fieldEnd < end && (ch = b[fieldEnd]) != '\n' && ch != delimiter
+                        && !(whitespace && ch == '\t')) {
+                    fieldEnd++;
+                }
+                int slot = (column <= lastColumn) ? slots[column] : -1;
+                if (slot >= 0) {
+                    int numberEnd = fieldEnd;
+                    while (numberEnd > i && isTrailing(b[numberEnd - 1])) {
+                        numberEnd--;
+                    }
+                    try {
+                        row[slot] = parseNumber(b, i, numberEnd);
+                    } catch (NumberFormatException ex) {
+                        chunk.error = "Malformed number in column " + column + " of the line at byte " +
+                                (offset + lineStart) + ": " + text(b, i, Math.min(numberEnd, i + 64));
+                        return;
+                    }
+                    found++;
+                }
+                if (fieldEnd == end || ch == '\n') {
+                    i = fieldEnd;
+                    break;
+                }
+                i = skipBlanks(b, fieldEnd + 1, end);
+                if (found == numMapped) {
+                    // every mapped column is parsed; ignore the rest of the line
+                    break;
+                }
+                if (whitespace && (i == end || isLineEnd(b[i]))) {
+                    // trailing blanks
+                    break;
+                }
+                column++;
+            }
+            if (found < numMapped) {
+                chunk.error = "Line at byte " + (offset + lineStart) + " has only " +
+                        (column + 1) + " columns, expected " + (lastColumn + 1);
+                return;
+            }
+            chunk.addRow();
+            i = nextLine(b, i, end);
+        }
+    }
+
+    /**
+     * Skip spaces, and tabs unless they separate fields.
+     */
+    private int skipBlanks(byte[] b, int i, int end) {
+        while (i < end) {
+            byte ch = b[i];
+            if (ch == ' ' || (ch == '\t' && delimiter != '\t')) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private boolean isTrailing(byte ch) {
+        return ch == ' ' || ch == '\r' || (ch == '\t' && delimiter != '\t');
+    }
+
+    private static boolean isLineEnd(byte ch) {
+        return ch == '\n' || ch == '\r';
+    }
+
+    private static int nextLine(byte[] b, int i, int end) {
+        while (i < end && b[i] != '\n') {
+            i++;
+        }
+        return Math.min(i + 1, end);
+    }
+
+    /**
+     * Parse a decimal number from bytes.
+     * @param b buffer holding the text
+     * @param from offset of the first character
+     * @param to offset just past the last character
+     * @return the nearest double to the number
+     * @throws java.lang.NumberFormatException if the text is not a number
+     */
+    protected static double parseNumber(byte[] b, int from, int to) throws NumberFormatException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean any = false, exact = true;
+        byte ch;
+        while (i < to && (ch = b[i]) >= '0' && ch <= '9') {
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (ch - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact &= ch == '0';
+            }
+            i++;
+        }
+        if (i < to && b[i] == '.') {
+            i++;
+            while (i < to && (ch = b[i]) >= '0' && ch <= '9') {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    exact &= ch == '0';
+                }
+                i++;
+            }
+        }
+        if (any && i < to && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (b[i] == '-' || b[i] == '+')) {
+                negativeExponent = b[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponent = false;
+            while (i < to && (ch = b[i]) >= '0' && ch <= '9') {
+                anyExponent = true;
+                if (e < 100000) {
+                    e = e * 10 + (ch - '0');
+                }
+                i++;
+            }
+            any = anyExponent;
+            exponent += negativeExponent ? -e : e;
+        }
+        if (any && i == to && exact && mantissa < (1L << 53)
+                && exponent >= -22 && exponent <= 22) {
+            // both operands are exact, so the result is correctly rounded
+            double value = (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent]
+                    : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(text(b, from, to));
+    }
+
+    private static String text(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.US_ASCII);
+    }
+}
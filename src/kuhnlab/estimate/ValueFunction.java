@@ -0,0 +1,70 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A function f(<b>X</b>;<b>A</b>) that can only compute its value, with no
+ * analytic derivatives. Wrap it in a {@link FiniteDifferenceFunction} to fit
+ * it with {@link LevenbergMarquardtEstimator}.
+ * <p>
+ * The estimator may evaluate the function from several threads at once, so
+ * {@link #getValue} must not modify shared state.
+ *
+ * @author jrkuhn
+ */
+public interface ValueFunction {
+    /**
+     * Get number of "x" values. For example: 1 for f(x;A), 2 for f(x,y;A), etc.
+     * @return number of dimensions of a point
+     */
+    public int getPointDimension();
+
+    /**
+     * Get number of coefficients a that determine this function f(x;a).
+     * @return number of coefficients in in f
+     */
+    public int getNumCoef();
+
+    /**
+     * Get the name of a coefficent.
+     * @param index index into array of coefficents
+     * @return the name of the coefficient.
+     */
+    public String getCoefName(int index);
+
+    /**
+     * Get the function value at a point.
+     * @param point     point to evalute function at
+     * @param coef      coefficients to use to evaluate function
+     * @return the value at the data point
+     */
+    public double getValue(double[] point, double[] coef);
+
+    /**
+     * Get the function values at a block of points. The finite difference
+     * Jacobian is built from one call per coefficient, so a model that can
+     * evaluate many points faster than one at a time should override this.
+     * The default implementation calls {@link #getValue} for each point,
+     * passing it a re-used per-thread buffer.
+     * @param points    packed point coordinates, {@link #getPointDimension}
+     *                  values per point
+     * @param numPoints number of points to evaluate
+     * @param coef      coefficients to use to evaluate function
+     * @param values    receives the value at each point
+     */
+    public default void getValues(double[] points, int numPoints, double[] coef, double[] values) {
+        int dim = getPointDimension();
+        double[] point = ScratchPoint.acquire(dim);
+        try {
+            for (int i = 0, offset = 0; i < numPoints; i++, offset += dim) {
+                System.arraycopy(points, offset, point, 0, dim);
+                values[i] = getValue(point, coef);
+            }
+        } finally {
+            ScratchPoint.release(point);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package kuhnlab.estimate;
+
+/**
+ * A bounded window of the most recent data points, for refitting a model as
+ * new samples stream in. Points are kept in packed ring buffers: appending to
+ * a full window overwrites the oldest point, and nothing is ever shifted or
+ * reallocated. Index 0 is always the oldest point in the window.
+ *
+ * @author jrkuhn
+ */
+public class WindowData implements DataSource {
+    protected final int dimension;
+    protected final int capacity;
+    /** Ring buffer index of the oldest point. */
+    protected int head;
+    protected int size;
+    protected final double[] points;
+    protected final double[] values;
+    protected final double[] weights;
+
+    /**
+     * Create an empty window.
+     * @param dimension number of coordinates per point.
+     * @param capacity maximum number of points held.
+     */
+    public WindowData(int dimension, int capacity) {
+        if (dimension < 1 || capacity < 1) {
+            throw new RuntimeException("Window dimension and capacity must be positive");
+        }
+        this.dimension = dimension;
+        this.capacity = capacity;
+        head = 0;
+        size = 0;
+        points = new double[capacity * dimension];
+        values = new double[capacity];
+        weights = new double[capacity];
+    }
+
+    public int getPointDimension() {
+        return dimension;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of points held.
+     * @return capacity of the window
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Append a point, evicting the oldest point if the window is full.
+     * @param point coordinates of the point
+     * @param value value at this point
+     * @param weight estimated standard deviation of the value
+     * @return {@code true} if a point was evicted.
+     */
+    public boolean append(double[] point, double value, double weight) {
+        int slot = head + size;
+        if (slot >= capacity) {
+            slot -= capacity;
+        }
+        System.arraycopy(point, 0, points, slot * dimension, dimension);
+        values[slot] = value;
+        weights[slot] = weight;
+        if (size < capacity) {
+            size++;
+            return false;
+        }
+        head = (head + 1 == capacity) ? 0 : head + 1;
+        return true;
+    }
+
+    /**
+     * Append many points from packed arrays, evicting the oldest points as
+     * needed.
+     * @param xs packed coordinates, {@link #getPointDimension} values per point
+     * @param ys values at each point
+     * @param sigmas estimated standard deviation of each value
+     * @return number of points evicted.
+     */
+    public int appendAll(double[] xs, double[] ys, double[] sigmas) {
+        int evicted = 0;
+        int count = ys.length;
+        // only the last capacity points can survive
+        int skip = Math.max(0, count - capacity);
+        if (skip > 0) {
+            evicted += skip + size;
+            head = 0;
+            size = 0;
+        }
+        int p = skip * dimension;
+        for (int i = skip; i < count; i++) {
+            int slot = head + size;
+            if (slot >= capacity) {
+                slot -= capacity;
+            }
+            System.arraycopy(xs, p, points, slot * dimension, dimension);
+            p += dimension;
+            values[slot] = ys[i];
+            weights[slot] = sigmas[i];
+            if (size < capacity) {
+                size++;
+            } else {
+                head = (head + 1 == capacity) ? 0 : head + 1;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Remove the oldest points.
+     * @param count number of points to remove. Clipped to the window size.
+     */
+    public void evict(int count) {
+        count = Math.min(count, size);
+        head = (head + count) % capacity;
+        size -= count;
+    }
+
+    /**
+     * Remove all points.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    public void read(long from, int count, double[] xs, double[] ys, double[] sigmas) {
+        int start = head + (int) from;
+        if (start >= capacity) {
+            start -= capacity;
+        }
+        // the range may wrap around the end of the ring buffer
+        int first = Math.min(count, capacity - start);
+        System.arraycopy(points, start * dimension, xs, 0, first * dimension);
+        System.arraycopy(values, start, ys, 0, first);
+        System.arraycopy(weights, start, sigmas, 0, first);
+        if (first < count) {
+            int rest = count - first;
+            System.arraycopy(points, 0, xs, first * dimension, rest * dimension);
+            System.arraycopy(values, 0, ys, first, rest);
+            System.arraycopy(weights, 0, sigmas, first, rest);
+        }
+    }
+}